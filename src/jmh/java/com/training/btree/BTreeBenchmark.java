@@ -0,0 +1,102 @@
+package com.training.btree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class BTreeBenchmark {
+    static final int KEYS = 200_000;
+    //random and Zipfian keys are drawn from a range this many times larger than the key count
+    private static final int SPREAD = 10;
+    private static final long SEED = 42;
+
+    @Param({"50", "100", "150", "200", "250", "300", "350", "400"})
+    int order;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN"})
+    KeyDistribution distribution;
+
+    int[] keys;
+
+    @Setup(Level.Trial)
+    public void prepareKeys() {
+        keys = distribution.keys(KEYS, SPREAD * KEYS, SEED);
+    }
+
+    //a tree holding every key, rebuilt before each invocation that empties it
+    @State(Scope.Thread)
+    public static class FilledTree {
+        BTree tree;
+
+        @Setup(Level.Invocation)
+        public void fill(BTreeBenchmark benchmark) {
+            tree = BTree.bulkLoad(benchmark.order, benchmark.keys);
+        }
+    }
+
+    //a tree of steady size: every invocation is a single delete, insert or lookup; each delete takes out a key the
+    //tree holds and the next invocation puts it back, so every write changes the tree and the size stays put
+    @State(Scope.Thread)
+    public static class SteadyTree {
+        BTree tree;
+        int next;
+        int removed;
+
+        @Setup(Level.Trial)
+        public void fill(BTreeBenchmark benchmark) {
+            tree = BTree.bulkLoad(benchmark.order, benchmark.keys);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public BTree insert() {
+        BTree tree = new BTree(order);
+        tree.insert(keys);
+        return tree;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public BTree delete(FilledTree filled) {
+        filled.tree.delete(keys);
+        return filled.tree;
+    }
+
+    //a quarter deletes, a quarter inserts and half lookups
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public boolean mixed(SteadyTree steady) {
+        int operation = steady.next & 3;
+        int key = keys[steady.next];
+        steady.next = steady.next + 1 == keys.length ? 0 : steady.next + 1;
+        if (operation == 0) {
+            steady.tree.delete(key);
+            steady.removed = key;
+            return false;
+        }
+        if (operation == 1) {
+            steady.tree.insert(steady.removed);
+            return true;
+        }
+        return steady.tree.contains(key);
+    }
+}
@@ -0,0 +1,54 @@
+package com.training.btree;
+
+import java.util.Random;
+
+public enum KeyDistribution {
+    SEQUENTIAL {
+        @Override
+        int[] keys(int count, int range, long seed) {
+            int[] keys = new int[count];
+            for (int i = 0; i < count; i++)
+                keys[i] = i;
+            return keys;
+        }
+    },
+    RANDOM {
+        @Override
+        int[] keys(int count, int range, long seed) {
+            return new Random(seed).ints(count, 0, range).toArray();
+        }
+    },
+    //a few hot keys and a long tail, the hot ones scattered over the range rather than bunched at its start
+    ZIPFIAN {
+        @Override
+        int[] keys(int count, int range, long seed) {
+            Random random = new Random(seed);
+            double zetaN = zeta(range);
+            double alpha = 1 / (1 - THETA);
+            double eta = (1 - Math.pow(2.0 / range, 1 - THETA)) / (1 - zeta(2) / zetaN);
+
+            int[] keys = new int[count];
+            for (int i = 0; i < count; i++) {
+                double u = random.nextDouble();
+                double uz = u * zetaN;
+                long rank;
+                if (uz < 1) rank = 0;
+                else if (uz < 1 + Math.pow(0.5, THETA)) rank = 1;
+                else rank = (long) (range * Math.pow(eta * u - eta + 1, alpha));
+                keys[i] = (int) Long.remainderUnsigned(rank * 0x9E3779B97F4A7C15L, range);
+            }
+            return keys;
+        }
+    };
+
+    private static final double THETA = 0.99;
+
+    abstract int[] keys(int count, int range, long seed);
+
+    private static double zeta(int n) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++)
+            sum += 1 / Math.pow(i, THETA);
+        return sum;
+    }
+}
@@ -0,0 +1,24 @@
+package com.training.btree;
+
+//a monoid over keys that a BTree caches per subtree; combine must be associative and is applied in key order
+public interface Aggregate {
+    //the value of no keys at all
+    long identity();
+
+    //the value of a single key
+    long of(int key);
+
+    long combine(long left, long right);
+
+    static Aggregate sum() {
+        return StandardAggregate.SUM;
+    }
+
+    static Aggregate min() {
+        return StandardAggregate.MIN;
+    }
+
+    static Aggregate max() {
+        return StandardAggregate.MAX;
+    }
+}
@@ -0,0 +1,113 @@
+package com.training.btree;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+//counts the reads and writes of a tree and, every so many operations, picks node orders for their mix; a tree
+//rebuilt with new orders on another thread comes with the log of the writes made since its snapshot was taken
+final class AutoTuner {
+    static final int INTERVAL = 1 << 16;
+
+    private final NodeSizing sizing;
+    private long reads;
+    private long writes;
+    private int operations;
+    private CompletableFuture<BTree> rebuild;
+    //the keys written since the rebuild started, each with whether it was inserted or deleted
+    private int[] logKeys = new int[0];
+    private boolean[] logInserts = new boolean[0];
+    private int logLength;
+
+    AutoTuner(NodeSizing sizing) {
+        this.sizing = sizing;
+    }
+
+    //whether the interval is up
+    boolean recordRead() {
+        reads++;
+        return ++operations >= INTERVAL;
+    }
+
+    boolean recordWrite() {
+        writes++;
+        return ++operations >= INTERVAL;
+    }
+
+    //keeps the write for the rebuild under way, if there is one
+    void log(int key, boolean insert) {
+        if (rebuild == null) return;
+        if (logLength == logKeys.length) {
+            logKeys = Arrays.copyOf(logKeys, Math.max(16, 2 * logLength));
+            logInserts = Arrays.copyOf(logInserts, logKeys.length);
+        }
+        logKeys[logLength] = key;
+        logInserts[logLength++] = insert;
+    }
+
+    //the share of reads seen, with the older intervals counting half as much each time
+    double nextInterval() {
+        operations = 0;
+        double readShare = reads + writes == 0 ? 0.5 : (double) reads / (reads + writes);
+        reads /= 2;
+        writes /= 2;
+        return readShare;
+    }
+
+    int innerOrder() {
+        return sizing.innerOrder();
+    }
+
+    int leafOrder(double readShare) {
+        return sizing.leafOrder(readShare);
+    }
+
+    //only a twofold change is worth a rebuild, so a mix wavering around a boundary does not keep rebuilding
+    static boolean differs(int current, int wanted) {
+        return Math.max(current, wanted) >= 2 * Math.min(current, wanted);
+    }
+
+    void start(CompletableFuture<BTree> rebuild) {
+        this.rebuild = rebuild;
+        logLength = 0;
+    }
+
+    boolean isRebuilding() {
+        return rebuild != null;
+    }
+
+    boolean isRebuilt() {
+        return rebuild != null && rebuild.isDone();
+    }
+
+    //waits for the rebuild if need be; null if it failed
+    BTree takeRebuilt() {
+        CompletableFuture<BTree> done = rebuild;
+        rebuild = null;
+        return done.exceptionally(e -> null).join();
+    }
+
+    //a log longer than the tree costs more to replay than the rebuild saves
+    boolean isLogTooLong(int size) {
+        return logLength > Math.max(size, INTERVAL);
+    }
+
+    void cancel() {
+        if (rebuild != null) rebuild.cancel(false);
+        rebuild = null;
+        logLength = 0;
+        logKeys = new int[0];
+        logInserts = new boolean[0];
+    }
+
+    int logLength() {
+        return logLength;
+    }
+
+    int logKey(int index) {
+        return logKeys[index];
+    }
+
+    boolean logInsert(int index) {
+        return logInserts[index];
+    }
+}
@@ -0,0 +1,267 @@
+package com.training.btree;
+
+public class BPlusTree {
+    private final int order;
+    private final SearchStrategy search;
+    private BTreeNode root;
+    private BTreeNode firstLeaf;
+    private int size;
+
+    public BPlusTree(int order) {
+        this(order, SearchStrategy.forOrder(order));
+    }
+
+    public BPlusTree(int order, SearchStrategy search) {
+        if (order < 2) throw new IllegalArgumentException("Order must be at least 2");
+        this.order = order;
+        this.search = search;
+        this.root = null;
+    }
+
+    public void insert(int... keys) {
+        for (int key : keys) {
+            insert(key);
+        }
+    }
+
+    public void delete(int... keys) {
+        for (int key : keys) {
+            delete(key);
+        }
+    }
+
+    public boolean contains(int key) {
+        if (root == null) return false;
+        BTreeNode leaf = leafFor(key);
+        int index = leaf.findIndex(key);
+        return index < leaf.getKeysNumber() && leaf.keys()[index] == key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public BPlusTreeCursor cursor() {
+        return new BPlusTreeCursor(this);
+    }
+
+    BTreeNode firstLeaf() {
+        return firstLeaf;
+    }
+
+    BTreeNode leafFor(int key) {
+        BTreeNode node = root;
+        while (node != null && !node.isLeaf()) {
+            node = node.children()[childIndex(node, key)];
+        }
+        return node;
+    }
+
+    private boolean insert(int key) {
+        if (root == null) {
+            root = new BTreeNode(order, key, search);
+            firstLeaf = root;
+            size++;
+            return true;
+        }
+
+        if (root.getKeysNumber() == 2 * order - 1) {
+            BTreeNode newRoot = new BTreeNode(order, search, false);
+            newRoot.updateChildAt(0, root);
+            splitChild(newRoot, 0);
+            root = newRoot;
+        }
+
+        BTreeNode node = root;
+        while (!node.isLeaf()) {
+            int index = childIndex(node, key);
+            if (node.children()[index].getKeysNumber() == 2 * order - 1) {
+                splitChild(node, index);
+                if (key >= node.keys()[index]) index++;
+            }
+            node = node.children()[index];
+        }
+        if (!node.addKey(key)) return false;
+        size++;
+        return true;
+    }
+
+    private boolean delete(int key) {
+        if (root == null) return false;
+
+        BTreeNode node = root;
+        while (!node.isLeaf()) {
+            int index = childIndex(node, key);
+            if (node.children()[index].getKeysNumber() == order - 1) index = fillChild(node, index);
+            node = node.children()[index];
+        }
+        boolean deleted = node.deleteKey(key);
+        if (deleted) size--;
+
+        if (root.getKeysNumber() == 0) {
+            if (!root.isLeaf()) root = root.children()[0];
+            else root = firstLeaf = null;
+        }
+        return deleted;
+    }
+
+    //separators are copies of the first key of their right subtree, so equal keys go right
+    private int childIndex(BTreeNode node, int key) {
+        int index = node.findIndex(key);
+        if (index < node.getKeysNumber() && node.keys()[index] == key) index++;
+        return index;
+    }
+
+    private void splitChild(BTreeNode parent, int index) {
+        BTreeNode child = parent.children()[index];
+        BTreeNode right = child.splitFrom(order);
+        int separator;
+        if (child.isLeaf()) {
+            //leaves keep every key, the separator is only copied up
+            separator = right.keys()[0];
+            right.setNext(child.next());
+            child.setNext(right);
+        } else {
+            separator = child.keys()[order - 1];
+            child.deleteKeyAt(order - 1);
+        }
+        parent.addKeyAt(index, separator);
+        parent.insertChildAt(index + 1, right);
+    }
+
+    private int fillChild(BTreeNode node, int index) {
+        BTreeNode[] children = node.children();
+        if (index < node.getKeysNumber() && children[index + 1].getKeysNumber() > order - 1) {
+            borrowKeyFromRight(node, index);
+            return index;
+        }
+        if (index > 0 && children[index - 1].getKeysNumber() > order - 1) {
+            borrowKeyFromLeft(node, index);
+            return index;
+        }
+        if (index < node.getKeysNumber()) {
+            mergeChildren(node, index);
+            return index;
+        }
+        mergeChildren(node, index - 1);
+        return index - 1;
+    }
+
+    private void mergeChildren(BTreeNode node, int index) {
+        BTreeNode[] children = node.children();
+        BTreeNode left = children[index];
+        BTreeNode right = children[index + 1];
+
+        if (left.isLeaf()) {
+            left.setNext(right.next());
+        } else {
+            left.addKeyAt(left.getKeysNumber(), node.keys()[index]);
+        }
+
+        int[] rightKeys = right.keys();
+        for (int i = 0; i < right.getKeysNumber(); i++)
+            left.addKeyAt(left.getKeysNumber(), rightKeys[i]);
+
+        if (!right.isLeaf()) {
+            BTreeNode[] rightChildren = right.children();
+            for (int i = 0; i < right.getChildrenNumber(); i++)
+                left.updateChildAt(left.getChildrenNumber(), rightChildren[i]);
+        }
+        node.deleteKeyAt(index);
+        node.deleteChildAt(index + 1);
+    }
+
+    private void borrowKeyFromRight(BTreeNode node, int index) {
+        BTreeNode[] children = node.children();
+        BTreeNode target = children[index];
+        BTreeNode right = children[index + 1];
+
+        if (target.isLeaf()) {
+            target.addKeyAt(target.getKeysNumber(), right.keys()[0]);
+            right.deleteKeyAt(0);
+            node.setKeyAt(index, right.keys()[0]);
+            return;
+        }
+
+        //rotate the separator down and the first right key up
+        target.addKeyAt(target.getKeysNumber(), node.keys()[index]);
+        node.setKeyAt(index, right.keys()[0]);
+        right.deleteKeyAt(0);
+
+        BTreeNode rightChild = right.children()[0];
+        right.deleteChildAt(0);
+        target.updateChildAt(target.getChildrenNumber(), rightChild);
+    }
+
+    private void borrowKeyFromLeft(BTreeNode node, int index) {
+        BTreeNode[] children = node.children();
+        BTreeNode target = children[index];
+        BTreeNode left = children[index - 1];
+        int last = left.getKeysNumber() - 1;
+
+        if (target.isLeaf()) {
+            target.addKeyAt(0, left.keys()[last]);
+            left.deleteKeyAt(last);
+            node.setKeyAt(index - 1, target.keys()[0]);
+            return;
+        }
+
+        //rotate the separator down and the last left key up
+        target.addKeyAt(0, node.keys()[index - 1]);
+        node.setKeyAt(index - 1, left.keys()[last]);
+        left.deleteKeyAt(last);
+
+        BTreeNode leftChild = left.children()[left.getChildrenNumber() - 1];
+        left.deleteChildAt(left.getChildrenNumber() - 1);
+        target.insertChildAt(0, leftChild);
+    }
+
+    public boolean isBalanced() {
+        if (root == null) return size == 0 && firstLeaf == null;
+        if (!root.isLeaf() && root.getKeysNumber() < 1) return false;
+        if (isValid(root, Long.MIN_VALUE, Long.MAX_VALUE) < 0) return false;
+
+        //the leaf chain must hold every key in ascending order
+        int count = 0;
+        long previous = Long.MIN_VALUE;
+        for (BTreeNode leaf = firstLeaf; leaf != null; leaf = leaf.next()) {
+            int[] keys = leaf.keys();
+            for (int i = 0; i < leaf.getKeysNumber(); i++) {
+                if (keys[i] <= previous) return false;
+                previous = keys[i];
+                count++;
+            }
+        }
+        return count == size;
+    }
+
+    //returns the height of a valid subtree whose keys lie in [low, high), or -1
+    private int isValid(BTreeNode node, long low, long high) {
+        int keysNumber = node.getKeysNumber();
+        if (keysNumber > 2 * order - 1) return -1;
+        if (node != root && keysNumber < order - 1) return -1;
+
+        int[] keys = node.keys();
+        for (int i = 0; i < keysNumber; i++) {
+            if (keys[i] < low || keys[i] >= high) return -1;
+            if (i > 0 && keys[i] <= keys[i - 1]) return -1;
+        }
+        if (node.isLeaf()) return 0;
+        if (node.getChildrenNumber() != keysNumber + 1) return -1;
+
+        BTreeNode[] children = node.children();
+        int height = -1;
+        for (int i = 0; i <= keysNumber; i++) {
+            long childLow = i == 0 ? low : keys[i - 1];
+            long childHigh = i == keysNumber ? high : keys[i];
+            int childHeight = isValid(children[i], childLow, childHigh);
+            if (childHeight < 0 || (height >= 0 && childHeight != height)) return -1;
+            height = childHeight;
+        }
+        return height + 1;
+    }
+}
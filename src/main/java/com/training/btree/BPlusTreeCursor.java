@@ -0,0 +1,51 @@
+package com.training.btree;
+
+import java.util.NoSuchElementException;
+
+public class BPlusTreeCursor {
+    private final BPlusTree tree;
+    private BTreeNode leaf;
+    private int index;
+    //exclusive upper bound of the current scan
+    private long high;
+
+    BPlusTreeCursor(BPlusTree tree) {
+        this.tree = tree;
+    }
+
+    public BPlusTreeCursor seekFirst() {
+        leaf = tree.firstLeaf();
+        index = 0;
+        high = Long.MAX_VALUE;
+        return this;
+    }
+
+    public BPlusTreeCursor seek(int key) {
+        return seek(key, Long.MAX_VALUE);
+    }
+
+    //positions the cursor on the keys in [from, to)
+    public BPlusTreeCursor seek(int from, int to) {
+        return seek(from, (long) to);
+    }
+
+    private BPlusTreeCursor seek(int from, long to) {
+        leaf = tree.leafFor(from);
+        index = leaf == null ? 0 : leaf.findIndex(from);
+        high = to;
+        return this;
+    }
+
+    public boolean hasNext() {
+        while (leaf != null && index == leaf.getKeysNumber()) {
+            leaf = leaf.next();
+            index = 0;
+        }
+        return leaf != null && leaf.keys()[index] < high;
+    }
+
+    public int next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return leaf.keys()[index++];
+    }
+}
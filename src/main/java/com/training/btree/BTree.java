@@ -1,89 +1,1101 @@
 package com.training.btree;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 public class BTree {
-    private final int order;
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.25;
+    private static final long NO_KEY = Long.MIN_VALUE;
+    //appends in a row after which a full node on the right edge is split unevenly
+    private static final int SEQUENTIAL_APPENDS = 4;
+    private static final int DEFAULT_POOL_CAPACITY = 1024;
+
+    //the order of the inner nodes and that of the leaves
+    private int order;
+    private int leafOrder;
+    private final SearchStrategy search;
+    private final boolean withValues;
     private BTreeNode root;
+    private int size;
+    //nodes of an older epoch may be shared with a snapshot and are copied before they change
+    private int epoch;
+    private boolean readOnly;
+    //value displaced by the last put or remove
+    private long lastValue;
+    //null while stats are off, which leaves a null check per structural change
+    private BTreeStats stats;
+    //whether the nodes keep the key count of every child, turned on by the first order statistic asked for
+    private boolean counted;
+    //deletes only mark their key while lazy, and the tree is rebuilt once the tombstones pass the threshold
+    private boolean lazyDeletes;
+    private double compactionThreshold;
+    private int tombstones;
+    //the leaf holding the largest key and its ancestors, valid until anything but an append changes the tree
+    private BTreeNode rightmostLeaf;
+    private BTreeNode[] spine = new BTreeNode[8];
+    private int spineDepth;
+    //inserts in a row that went past the largest key
+    private int appendRun;
+    //uneven splits left nodes short of order - 1 keys on the right edge, where the next appends fill them
+    private boolean ragged;
+    //null unless the nodes freed by merges are kept for later splits
+    private NodePool pool;
+    //null unless the orders are tuned to the machine and the mix of reads and writes
+    private AutoTuner tuner;
+    //cached per child in every node once set; null while no aggregate is kept
+    private Aggregate aggregate;
+    //the nodes an insert passed through, whose counts grow once the key turns out to be new
+    private BTreeNode[] path = new BTreeNode[8];
+    private int[] pathIndexes = new int[8];
 
     public BTree(int order) {
-        this.order = order;
+        this(order, SearchStrategy.forOrder(order));
+    }
+
+    public BTree(int order, SearchStrategy search) {
+        this(order, search, false);
+    }
+
+    //inner nodes small enough to stay in cache on the way down, leaves large enough to scan in long runs
+    public BTree(int innerOrder, int leafOrder) {
+        this(innerOrder, leafOrder, SearchStrategy.forOrder(leafOrder));
+    }
+
+    public BTree(int innerOrder, int leafOrder, SearchStrategy search) {
+        this(innerOrder, leafOrder, search, false);
+    }
+
+    BTree(int order, SearchStrategy search, boolean withValues) {
+        this(order, order, search, withValues);
+    }
+
+    BTree(int innerOrder, int leafOrder, SearchStrategy search, boolean withValues) {
+        if (innerOrder < 2 || leafOrder < 2) throw new IllegalArgumentException("Orders must be at least 2");
+        this.order = innerOrder;
+        this.leafOrder = leafOrder;
+        this.search = search;
+        this.withValues = withValues;
         this.root = null;
     }
 
+    public static BTree bulkLoad(int order, int[] keys) {
+        return bulkLoad(order, keys, 1.0);
+    }
+
+    public static BTree bulkLoad(int order, int[] keys, double fillFactor) {
+        return bulkLoad(order, SearchStrategy.forOrder(order), keys, fillFactor);
+    }
+
+    //builds the tree bottom-up in O(n) from keys that are sorted, or sorted here if they are not
+    public static BTree bulkLoad(int order, SearchStrategy search, int[] keys, double fillFactor) {
+        BTree bTree = new BTree(order, search);
+        int[] sortedKeys = BulkLoader.sortedDistinct(keys);
+        bTree.root = BulkLoader.build(order, search, sortedKeys, fillFactor);
+        bTree.size = sortedKeys.length;
+        return bTree;
+    }
+
+    //writes the nodes as they are to a versioned, checksummed image that readFrom loads without rebalancing anything
+    public void writeTo(OutputStream out) throws IOException {
+        TreeImage.write(this, Channels.newChannel(out));
+    }
+
+    //writes the image at the position of the channel
+    public void writeTo(FileChannel channel) throws IOException {
+        TreeImage.write(this, channel);
+    }
+
+    public static BTree readFrom(InputStream in) throws IOException {
+        return TreeImage.read(Channels.newChannel(in), false);
+    }
+
+    //maps the image from the position of the channel and leaves the channel just past it
+    public static BTree readFrom(FileChannel channel) throws IOException {
+        return TreeImage.read(channel, false);
+    }
+
+    //the set operations merge the keys of both trees in O(n + m) and bulk load the result with the order and search of the first
+    public static BTree union(BTree first, BTree second) {
+        return loaded(first, SetOperations.union(first, second));
+    }
+
+    public static BTree intersect(BTree first, BTree second) {
+        return loaded(first, SetOperations.intersection(first, second));
+    }
+
+    public static BTree difference(BTree first, BTree second) {
+        return loaded(first, SetOperations.difference(first, second));
+    }
+
+    private static BTree loaded(BTree like, int[] sortedKeys) {
+        BTree bTree = new BTree(like.order, like.leafOrder, like.search);
+        bTree.root = BulkLoader.build(like.order, like.leafOrder, like.search, sortedKeys, 1.0, 0);
+        bTree.size = sortedKeys.length;
+        return bTree;
+    }
+
+    //the in-place set operations batch the keys of a tree much smaller than this one into it and rebuild this one otherwise
+    public void unionWith(BTree other) {
+        checkWritable();
+        if (isSmall(other)) insertBatch(SetOperations.keys(other));
+        else rebuild(SetOperations.union(this, other));
+    }
+
+    public void retainAll(BTree other) {
+        checkWritable();
+        rebuild(SetOperations.intersection(this, other));
+    }
+
+    public void removeAll(BTree other) {
+        checkWritable();
+        if (isSmall(other)) deleteBatch(SetOperations.keys(other));
+        else rebuild(SetOperations.difference(this, other));
+    }
+
+    //a batch costs about a descent per key where a rebuild costs a pass over both trees
+    private boolean isSmall(BTree other) {
+        return (long) other.size * height() < size;
+    }
+
+    //returns an immutable view of the current keys in O(1); the tree copies a shared node only when it changes it
+    public BTree snapshot() {
+        if (readOnly) return this;
+        BTree snapshot = new BTree(order, leafOrder, search, withValues);
+        snapshot.root = root;
+        snapshot.size = size;
+        snapshot.counted = counted;
+        snapshot.aggregate = aggregate;
+        snapshot.lazyDeletes = lazyDeletes;
+        snapshot.compactionThreshold = compactionThreshold;
+        snapshot.tombstones = tombstones;
+        snapshot.ragged = ragged;
+        snapshot.readOnly = true;
+        epoch++;
+        return snapshot;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public void enableStats() {
+        if (stats != null) return;
+        stats = new BTreeStats();
+        stats.countLevels(root);
+    }
+
+    public void disableStats() {
+        stats = null;
+    }
+
+    //picks the inner and leaf orders from the cache sizes of the machine and the reads and writes seen, checking
+    //again every so many operations; a tree whose orders should change is rebuilt from a snapshot on another thread
+    //and taken over by the first write after it is done, which replays the writes made in between on it
+    public void enableAutoTuning() {
+        checkWritable();
+        if (withValues) throw new UnsupportedOperationException("Auto-tuning rebuilds from the keys alone, which a map cannot");
+        if (tuner == null) tuner = new AutoTuner(NodeSizing.detect());
+        tune();
+    }
+
+    public void disableAutoTuning() {
+        if (tuner != null) tuner.cancel();
+        tuner = null;
+    }
+
+    public boolean isAutoTuning() {
+        return tuner != null;
+    }
+
+    boolean isRebuilding() {
+        return tuner != null && tuner.isRebuilding();
+    }
+
+    //whether a rebuild is done and waits for a write to take it over
+    boolean isRebuilt() {
+        return tuner != null && tuner.isRebuilt();
+    }
+
+    //waits for a rebuild under way and takes it over
+    void awaitRebuild() {
+        if (tuner != null && tuner.isRebuilding()) takeOverRebuild();
+    }
+
+    private void tune() {
+        double readShare = tuner.nextInterval();
+        if (tuner.isRebuilding()) {
+            if (tuner.isLogTooLong(size)) tuner.cancel();
+            return;
+        }
+        int innerOrder = tuner.innerOrder();
+        int newLeafOrder = tuner.leafOrder(readShare);
+        if (!AutoTuner.differs(order, innerOrder) && !AutoTuner.differs(leafOrder, newLeafOrder)) return;
+        if (root == null) {
+            order = innerOrder;
+            leafOrder = newLeafOrder;
+            return;
+        }
+        BTree snapshot = snapshot();
+        int rebuildEpoch = epoch;
+        tuner.start(CompletableFuture.supplyAsync(() -> snapshot.rebuilt(innerOrder, newLeafOrder, rebuildEpoch)));
+    }
+
+    //a writable copy of the live keys with other orders, its nodes made for the given epoch
+    private BTree rebuilt(int innerOrder, int leafOrder, int epoch) {
+        int[] keys = new int[size];
+        int[] count = {0};
+        forEachKey(key -> keys[count[0]++] = key);
+        BTree rebuilt = new BTree(innerOrder, leafOrder, search);
+        rebuilt.root = BulkLoader.build(innerOrder, leafOrder, search, keys, 1.0, epoch);
+        rebuilt.size = size;
+        rebuilt.counted = counted;
+        rebuilt.aggregate = aggregate;
+        if (rebuilt.root != null) {
+            if (counted) countSubtree(rebuilt.root);
+            if (aggregate != null) rebuilt.aggregateSubtree(rebuilt.root);
+        }
+        return rebuilt;
+    }
+
+    //only writes take over a finished rebuild, so a read never waits for the logged writes to be replayed
+    private void tuneWrite(int key, boolean insert) {
+        if (tuner.recordWrite()) tune();
+        if (tuner.isRebuilt()) takeOverRebuild();
+        tuner.log(key, insert);
+    }
+
+    private void takeOverRebuild() {
+        AutoTuner tuner = this.tuner;
+        BTree rebuilt = tuner.takeRebuilt();
+        if (rebuilt == null) {
+            tuner.cancel();
+            return;
+        }
+        order = rebuilt.order;
+        leafOrder = rebuilt.leafOrder;
+        root = rebuilt.root;
+        size = rebuilt.size;
+        tombstones = 0;
+        rightmostLeaf = null;
+        ragged = false;
+        if (stats != null) stats.countLevels(root);
+        if (root != null) {
+            if (counted && !rebuilt.counted) countSubtree(root);
+            if (aggregate != null && rebuilt.aggregate == null) aggregateSubtree(root);
+        }
+        //the replayed writes must not be logged or start another tuning round
+        this.tuner = null;
+        for (int i = 0; i < tuner.logLength(); i++) {
+            if (tuner.logInsert(i)) put(tuner.logKey(i), 0);
+            else remove(tuner.logKey(i));
+        }
+        this.tuner = tuner;
+        tuner.cancel();
+        if (stats != null) stats.recordRebuild();
+    }
+
+    //keeps up to capacity nodes freed by merges and root collapses, emptied, for later splits to fill instead of
+    //allocating; nodes a snapshot may share are never pooled
+    public void enableNodePool(int capacity) {
+        checkWritable();
+        if (capacity < 1) throw new IllegalArgumentException("Pool capacity must be positive");
+        pool = new NodePool(capacity);
+    }
+
+    public void enableNodePool() {
+        enableNodePool(DEFAULT_POOL_CAPACITY);
+    }
+
+    public void disableNodePool() {
+        pool = null;
+    }
+
+    int pooledNodes() {
+        return pool == null ? 0 : pool.size();
+    }
+
+    //the activity counters, or null while stats are off
+    public BTreeStats stats() {
+        return stats;
+    }
+
+    //the number of levels, 0 for an empty tree
+    public int height() {
+        int height = 0;
+        for (BTreeNode node = root; node != null; node = node.isLeaf() ? null : node.children()[0])
+            height++;
+        return height;
+    }
+
+    public int nodeCount() {
+        int nodes = 0;
+        for (long count : levelCounts(false))
+            nodes += count;
+        return nodes;
+    }
+
+    //keys held per key slot on each level, the root first
+    public double[] fillFactorPerLevel() {
+        long[] nodes = levelCounts(false);
+        long[] keys = levelCounts(true);
+        double[] fill = new double[nodes.length];
+        for (int level = 0; level < fill.length; level++)
+            fill[level] = (double) keys[level] / (nodes[level] * (2 * (level == fill.length - 1 ? leafOrder : order) - 1));
+        return fill;
+    }
+
+    private long[] levelCounts(boolean keys) {
+        long[] counts = new long[height()];
+        if (root != null) levelCounts(root, 0, counts, keys);
+        return counts;
+    }
+
+    private static void levelCounts(BTreeNode node, int level, long[] counts, boolean keys) {
+        counts[level] += keys ? node.getKeysNumber() : 1;
+        if (node.isLeaf()) return;
+        BTreeNode[] children = node.children();
+        for (int i = 0; i < node.getChildrenNumber(); i++)
+            levelCounts(children[i], level + 1, counts, keys);
+    }
+
     public void insert(int... keys) {
         for (int key : keys) {
-            insert(key);
+            put(key, 0);
         }
     }
 
     public void delete(int... keys) {
         for (int key : keys) {
-            delete(root, key);
-            if (root != null && root.getKeysNumber() == 0) {
-                if (root.getChildrenNumber() > 0) root = root.getChildren()[0];
-                else root = null;
-            }
+            remove(key);
         }
     }
 
-    private void insert(int key) {
+    //sorts the batch and inserts every run of keys headed for the same node in one visit
+    public void insertBatch(int... keys) {
+        checkWritable();
+        abandonRebuild();
+        rightmostLeaf = null;
+        int[] sortedKeys = BulkLoader.sortedDistinct(keys);
+        if (sortedKeys.length == 0) return;
+        //refilling nodes wholesale would drop the tombstones, so the keys go in one by one, reviving buried ones
+        if (tombstones > 0) {
+            insert(sortedKeys);
+            return;
+        }
         if (root == null) {
-            root = new BTreeNode(this.order, key);
+            root = BulkLoader.build(order, leafOrder, search, sortedKeys, 1.0, epoch);
+            size = sortedKeys.length;
+            if (stats != null) stats.countLevels(root);
+            if (counted) countSubtree(root);
+            if (aggregate != null) aggregateSubtree(root);
             return;
         }
 
-        if (root.getKeysNumber() == 2 * order - 1) {
-            BTreeNode newRoot = new BTreeNode(order, root.getKeys()[order - 1]);
-            newRoot.updateChildAt(0, root);
-            splitChild(newRoot, 0);
+        ownRoot();
+        Split split = insertRun(root, sortedKeys, 0, sortedKeys.length);
+        while (split != null) {
+            BTreeNode newRoot = new BTreeNode(order, search, false);
+            newRoot.setEpoch(epoch);
+            if (stats != null) stats.recordRootAdded();
+            split = splitNode(newRoot, split.separators, split.separators.length, split.nodes, rootCounts(split),
+                    rootAggregates(split));
             root = newRoot;
         }
-        insertNonFull(root, key);
     }
 
-    private void insertNonFull(BTreeNode node, int key) {
+    private int[] rootCounts(Split split) {
+        if (!counted) return null;
+        int[] counts = new int[split.nodes.length];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = split.nodes[i].subtreeSize();
+        return counts;
+    }
+
+    private long[] rootAggregates(Split split) {
+        if (aggregate == null) return null;
+        long[] aggregates = new long[split.nodes.length];
+        for (int i = 0; i < aggregates.length; i++)
+            aggregates[i] = split.nodes[i].aggregate(aggregate);
+        return aggregates;
+    }
+
+    //sorts the batch and deletes every run of keys held by the same leaf in one visit, rebalancing each node once
+    public void deleteBatch(int... keys) {
+        checkWritable();
+        abandonRebuild();
+        rightmostLeaf = null;
+        int[] sortedKeys = BulkLoader.sortedDistinct(keys);
+        if (root == null || sortedKeys.length == 0) return;
+        if (lazyDeletes) {
+            delete(sortedKeys);
+            return;
+        }
+        settleRightEdge();
+        ownRoot();
+
+        //keys found in internal nodes need a predecessor or successor, they are deleted one by one afterwards
+        int[] deferred = new int[sortedKeys.length];
+        int deferredNumber = deleteRun(root, sortedKeys, 0, sortedKeys.length, deferred, 0);
+        collapseRoot();
+
+        for (int i = 0; i < deferredNumber; i++) {
+            remove(deferred[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int key) {
+        if (tuner != null && tuner.recordRead()) tune();
+        BTreeNode node = root;
+        while (node != null) {
+            int index = node.findIndex(key);
+            if (index < node.getKeysNumber() && key == node.keys()[index]) return !node.isDead(index);
+            node = node.isLeaf() ? null : node.children()[index];
+        }
+        return false;
+    }
+
+    //the keys in ascending order; the tree must not change while the spliterator is in use
+    public Spliterator.OfInt spliterator() {
+        if (tuner != null && tuner.recordRead()) tune();
+        return new BTreeSpliterator(root, size, Integer.MIN_VALUE, Integer.MAX_VALUE + 1L, counted);
+    }
+
+    public IntStream stream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    //the keys in [from, to) in ascending order
+    public IntStream stream(int from, int to) {
+        if (tuner != null && tuner.recordRead()) tune();
+        return StreamSupport.intStream(new BTreeSpliterator(root, size, from, to, false), false);
+    }
+
+    public void enableLazyDeletes() {
+        enableLazyDeletes(DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    //deletes leave tombstones that lookups and scans skip, until tombstones make up more than the threshold
+    //of the keys in place and the live keys are bulk loaded into a fresh tree
+    public void enableLazyDeletes(double compactionThreshold) {
+        checkWritable();
+        if (withValues) throw new UnsupportedOperationException("Lazy deletes are not supported for maps");
+        if (compactionThreshold <= 0 || compactionThreshold >= 1)
+            throw new IllegalArgumentException("Compaction threshold must be in (0, 1)");
+        this.lazyDeletes = true;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    //compacts away the tombstones left and goes back to rebalancing on every delete
+    public void disableLazyDeletes() {
+        compact();
+        lazyDeletes = false;
+    }
+
+    public boolean isLazyDeletes() {
+        return lazyDeletes;
+    }
+
+    //deleted keys still in place
+    public int tombstones() {
+        return tombstones;
+    }
+
+    //rebuilds the tree from its live keys in O(n)
+    public void compact() {
+        checkWritable();
+        if (tombstones == 0) return;
+        int[] keys = new int[size];
+        int[] count = {0};
+        forEachKey(key -> keys[count[0]++] = key);
+        rebuild(keys);
+        if (stats != null) stats.recordCompaction();
+    }
+
+    //replaces the keys of the tree with the given ascending ones; the old nodes stay with any snapshot sharing them
+    private void rebuild(int[] sortedKeys) {
+        abandonRebuild();
+        root = BulkLoader.build(order, leafOrder, search, sortedKeys, 1.0, epoch);
+        size = sortedKeys.length;
+        tombstones = 0;
+        rightmostLeaf = null;
+        ragged = false;
+        if (stats != null) stats.countLevels(root);
+        if (root != null) {
+            if (counted) countSubtree(root);
+            if (aggregate != null) aggregateSubtree(root);
+        }
+    }
+
+    //keeps the aggregate of every subtree from now on; a tree keeps one aggregate for good, as its snapshots share the cached values
+    public void enableAggregate(Aggregate aggregate) {
+        checkWritable();
+        if (this.aggregate == aggregate) return;
+        if (this.aggregate != null) throw new IllegalStateException("The tree already keeps an aggregate");
+        this.aggregate = aggregate;
+        if (root != null) aggregateSubtree(root);
+    }
+
+    //the aggregate of the keys in [from, to), visiting the nodes along the two bounds only
+    public long aggregate(int from, int to) {
+        if (aggregate == null) throw new IllegalStateException("The tree keeps no aggregate");
+        if (root == null || from >= to) return aggregate.identity();
+        return aggregate(root, from, to);
+    }
+
+    private long aggregate(BTreeNode node, long low, long high) {
+        int first = low == Integer.MIN_VALUE ? 0 : node.findIndex((int) low);
+        int last = high > Integer.MAX_VALUE ? node.getKeysNumber() : node.findIndex((int) high);
+        int[] keys = node.keys();
+        long result = aggregate.identity();
+        if (node.isLeaf()) {
+            for (int i = first; i < last; i++) {
+                if (!node.isDead(i)) result = aggregate.combine(result, aggregate.of(keys[i]));
+            }
+            return result;
+        }
+        if (first == last) return childAggregate(node, first, low, high);
+
+        //only the children holding a bound are partly in range, those in between are taken whole
+        result = childAggregate(node, first, low, Integer.MAX_VALUE + 1L);
+        for (int i = first; i < last; i++) {
+            if (!node.isDead(i)) result = aggregate.combine(result, aggregate.of(keys[i]));
+            if (i + 1 < last) result = aggregate.combine(result, node.aggregateAt(i + 1));
+        }
+        return aggregate.combine(result, childAggregate(node, last, Integer.MIN_VALUE, high));
+    }
+
+    private long childAggregate(BTreeNode node, int index, long low, long high) {
+        if (low == Integer.MIN_VALUE && high > Integer.MAX_VALUE) return node.aggregateAt(index);
+        return aggregate(node.children()[index], low, high);
+    }
+
+    //the number of keys less than key
+    public int rank(int key) {
+        checkCounted();
+        int rank = 0;
+        BTreeNode node = root;
         while (node != null) {
+            int index = node.findIndex(key);
+            rank += node.liveKeysBefore(index);
             if (!node.isLeaf()) {
-                int index = node.findIndex(key);
+                for (int i = 0; i < index; i++)
+                    rank += node.countAt(i);
+            }
+            if (index < node.getKeysNumber() && key == node.keys()[index])
+                return node.isLeaf() ? rank : rank + node.countAt(index);
+            node = node.isLeaf() ? null : node.children()[index];
+        }
+        return rank;
+    }
 
-                if (index < node.getKeysNumber() && key == node.getKeys()[index]) return;
+    //the key of the given rank, 0 being the smallest
+    public int select(int rank) {
+        checkCounted();
+        if (rank < 0 || rank >= size) throw new IndexOutOfBoundsException("Rank " + rank + " out of " + size + " keys");
+        BTreeNode node = root;
+        while (!node.isLeaf()) {
+            int index = 0;
+            while (rank >= node.countAt(index)) {
+                rank -= node.countAt(index);
+                if (!node.isDead(index)) {
+                    if (rank == 0) return node.keys()[index];
+                    rank--;
+                }
+                index++;
+            }
+            node = node.children()[index];
+        }
+        for (int index = 0; ; index++) {
+            if (node.isDead(index)) continue;
+            if (rank == 0) return node.keys()[index];
+            rank--;
+        }
+    }
 
-                if (node.getChildren()[index].getKeysNumber() == 2 * order - 1) {
-                    node.addKeyAt(index, node.getChildren()[index].getKeys()[order - 1]);
-                    splitChild(node, index);
-                    Integer[] keys = node.getKeys();
-                    if (key == keys[index]) return;
+    //the number of keys in [from, to)
+    public int countInRange(int from, int to) {
+        if (from >= to) return 0;
+        return rank(to) - rank(from);
+    }
+
+    public int floorKey(int key) {
+        if (tombstones > 0) {
+            long floor = liveFloor(root, key);
+            if (floor == NO_KEY) throw new NoSuchElementException("No key less than or equal to " + key);
+            return (int) floor;
+        }
+        BTreeNode node = root;
+        boolean found = false;
+        int floor = 0;
+        while (node != null) {
+            int index = node.findIndex(key);
+            int[] keys = node.keys();
+            if (index < node.getKeysNumber() && key == keys[index]) return key;
+            if (index > 0) {
+                floor = keys[index - 1];
+                found = true;
+            }
+            node = node.isLeaf() ? null : node.children()[index];
+        }
+        if (!found) throw new NoSuchElementException("No key less than or equal to " + key);
+        return floor;
+    }
+
+    public int ceilingKey(int key) {
+        if (tombstones > 0) {
+            long ceiling = liveCeiling(root, key);
+            if (ceiling == NO_KEY) throw new NoSuchElementException("No key greater than or equal to " + key);
+            return (int) ceiling;
+        }
+        BTreeNode node = root;
+        boolean found = false;
+        int ceiling = 0;
+        while (node != null) {
+            int index = node.findIndex(key);
+            if (index < node.getKeysNumber()) {
+                ceiling = node.keys()[index];
+                found = true;
+                if (key == ceiling) return key;
+            }
+            node = node.isLeaf() ? null : node.children()[index];
+        }
+        if (!found) throw new NoSuchElementException("No key greater than or equal to " + key);
+        return ceiling;
+    }
+
+    //the greatest live key not above key, looking further left past tombstones; NO_KEY if there is none
+    private static long liveFloor(BTreeNode node, int key) {
+        int index = node.findIndex(key);
+        int[] keys = node.keys();
+        if (index < node.getKeysNumber() && key == keys[index] && !node.isDead(index)) return key;
+        for (int i = index; i >= 0; i--) {
+            if (!node.isLeaf()) {
+                long floor = liveFloor(node.children()[i], i == index ? key : Integer.MAX_VALUE);
+                if (floor != NO_KEY) return floor;
+            }
+            if (i > 0 && !node.isDead(i - 1)) return keys[i - 1];
+        }
+        return NO_KEY;
+    }
+
+    //the least live key not below key, looking further right past tombstones; NO_KEY if there is none
+    private static long liveCeiling(BTreeNode node, int key) {
+        int index = node.findIndex(key);
+        int[] keys = node.keys();
+        for (int i = index; i <= node.getKeysNumber(); i++) {
+            if (i < node.getKeysNumber() && key == keys[i] && !node.isDead(i)) return key;
+            if (!node.isLeaf()) {
+                long ceiling = liveCeiling(node.children()[i], i == index ? key : Integer.MIN_VALUE);
+                if (ceiling != NO_KEY) return ceiling;
+            }
+            if (i < node.getKeysNumber() && !node.isDead(i)) return keys[i];
+        }
+        return NO_KEY;
+    }
+
+    long get(int key, long missingValue) {
+        BTreeNode node = root;
+        while (node != null) {
+            int index = node.findIndex(key);
+            if (index < node.getKeysNumber() && key == node.keys()[index])
+                return node.isDead(index) ? missingValue : node.valueAt(index);
+            node = node.isLeaf() ? null : node.children()[index];
+        }
+        return missingValue;
+    }
+
+    BTreeNode root() {
+        return root;
+    }
+
+    int order() {
+        return order;
+    }
+
+    int leafOrder() {
+        return leafOrder;
+    }
+
+    SearchStrategy search() {
+        return search;
+    }
+
+    boolean hasValues() {
+        return withValues;
+    }
+
+    double compactionThreshold() {
+        return compactionThreshold;
+    }
+
+    //takes over nodes loaded from an image
+    void restore(BTreeNode root, int size, int tombstones, boolean ragged) {
+        this.root = root;
+        this.size = size;
+        this.tombstones = tombstones;
+        this.ragged = ragged;
+        if (stats != null) stats.countLevels(root);
+    }
+
+    Aggregate keptAggregate() {
+        return aggregate;
+    }
+
+    boolean isRagged() {
+        return ragged;
+    }
+
+    //visits the keys in ascending order
+    void forEachKey(IntConsumer action) {
+        if (root != null) forEachKey(root, action);
+    }
+
+    private static void forEachKey(BTreeNode node, IntConsumer action) {
+        int[] keys = node.keys();
+        BTreeNode[] children = node.children();
+        for (int i = 0; i < node.getKeysNumber(); i++) {
+            if (!node.isLeaf()) forEachKey(children[i], action);
+            if (!node.isDead(i)) action.accept(keys[i]);
+        }
+        if (!node.isLeaf()) forEachKey(children[node.getKeysNumber()], action);
+    }
+
+    //keeps the number of keys under every child from now on, for rank and select; like an aggregate the counts are
+    //cached in nodes that snapshots share, so only the writable tree counts, and the snapshots taken after inherit them
+    public void enableCounting() {
+        checkWritable();
+        if (counted) return;
+        if (root != null) countSubtree(root);
+        counted = true;
+    }
+
+    private void checkCounted() {
+        if (!counted) throw new IllegalStateException("The tree keeps no counts");
+    }
+
+    private static int countSubtree(BTreeNode node) {
+        if (node.isLeaf()) return node.subtreeSize();
+        BTreeNode[] children = node.children();
+        for (int i = 0; i < node.getChildrenNumber(); i++)
+            node.setCountAt(i, countSubtree(children[i]));
+        return node.subtreeSize();
+    }
+
+    private long aggregateSubtree(BTreeNode node) {
+        if (!node.isLeaf()) {
+            BTreeNode[] children = node.children();
+            for (int i = 0; i < node.getChildrenNumber(); i++)
+                node.setAggregateAt(i, aggregateSubtree(children[i]));
+        }
+        return node.aggregate(aggregate);
+    }
+
+    //refreshes the cached aggregate of a child after the child changed
+    private void aggregateChild(BTreeNode node, int index) {
+        if (aggregate != null) node.setAggregateAt(index, node.children()[index].aggregate(aggregate));
+    }
+
+    boolean isCounted() {
+        return counted;
+    }
+
+    long lastValue() {
+        return lastValue;
+    }
+
+    boolean put(int key, long value) {
+        checkWritable();
+        if (tuner != null) tuneWrite(key, true);
+        if (root == null) {
+            root = newNode(true, key, value);
+            if (stats != null) stats.recordRootAdded();
+            size++;
+            return true;
+        }
+
+        if (append(key, value)) return true;
+        ownRoot();
+        rightmostLeaf = null;
+
+        if (root.isFull()) {
+            int median = splitPoint(root, key > root.keys()[root.getKeysNumber() - 1]);
+            BTreeNode newRoot = newNode(false, root.keys()[median], root.valueAt(median));
+            newRoot.updateChildAt(0, root);
+            if (stats != null) stats.recordRootAdded();
+            splitChild(newRoot, 0, median);
+            root = newRoot;
+        }
+        if (!insertNonFull(root, key, value)) return false;
+        size++;
+        return true;
+    }
+
+    //puts a key past the largest one straight into the rightmost leaf, if it is known and has room
+    private boolean append(int key, long value) {
+        BTreeNode leaf = rightmostLeaf;
+        if (leaf == null || leaf.epoch() != epoch) return false;
+        int keysNumber = leaf.getKeysNumber();
+        if (leaf.isFull() || key <= leaf.keys()[keysNumber - 1]) return false;
+
+        leaf.addKeyAt(keysNumber, key, value);
+        //the key goes last in every subtree along the edge, so the aggregates just take it on at the end
+        for (int i = spineDepth - 1; i >= 0; i--) {
+            BTreeNode node = spine[i];
+            int last = node.getKeysNumber();
+            if (counted) node.addToCountAt(last, 1);
+            if (aggregate != null) node.setAggregateAt(last, aggregate.combine(node.aggregateAt(last), aggregate.of(key)));
+        }
+        size++;
+        appendRun++;
+        return true;
+    }
+
+    //where to split a full node: evenly, or while appending along the right edge, at its last key so the left node
+    //stays nearly full and the right one fills up with the next appends; an inner node keeps a key on the right
+    private int splitPoint(BTreeNode node, boolean rightEdge) {
+        int nodeOrder = node.order();
+        if (!rightEdge || appendRun < SEQUENTIAL_APPENDS) return nodeOrder - 1;
+        int median = node.isLeaf() ? 2 * nodeOrder - 2 : 2 * nodeOrder - 3;
+        if (median != nodeOrder - 1) ragged = true;
+        return median;
+    }
+
+    //brings the short nodes on the right edge back to order - 1 keys, which the eager deletes rely on
+    private void settleRightEdge() {
+        if (!ragged) return;
+        ragged = false;
+        rightmostLeaf = null;
+        ownRoot();
+        BTreeNode node = root;
+        while (!node.isLeaf()) {
+            int last = node.getChildrenNumber() - 1;
+            int minKeys = node.children()[last].order() - 1;
+            while (node.children()[last].getKeysNumber() < minKeys) {
+                if (node.children()[last - 1].getKeysNumber() > minKeys) {
+                    borrowKeyFromLeft(node, last);
+                } else {
+                    mergeChildren(node, last);
+                    last--;
+                }
+            }
+            node = ownChild(node, last);
+        }
+        collapseRoot();
+    }
+
+    boolean remove(int key) {
+        checkWritable();
+        if (tuner != null) tuneWrite(key, false);
+        if (root == null) return false;
+        rightmostLeaf = null;
+        if (!lazyDeletes) settleRightEdge();
+        ownRoot();
+        if (lazyDeletes) {
+            boolean deleted = bury(key);
+            if (deleted) size--;
+            if (tombstones > compactionThreshold * (size + tombstones)) compact();
+            return deleted;
+        }
+        boolean deleted = delete(root, key);
+        //the descent may have merged the last two children of the root even if the key was absent
+        collapseRoot();
+        if (deleted) size--;
+        return deleted;
+    }
+
+    private BTreeNode newNode(boolean leaf, int key, long value) {
+        int order = leaf ? leafOrder : this.order;
+        BTreeNode node = take(!leaf, order);
+        if (node != null) node.addKeyAt(0, key, value);
+        else node = withValues ? new BTreeNode(order, key, value, search) : new BTreeNode(order, key, search);
+        node.setEpoch(epoch);
+        return node;
+    }
+
+    //drops roots left without keys by merges below them
+    private void collapseRoot() {
+        while (root != null && root.getKeysNumber() == 0) {
+            BTreeNode empty = root;
+            root = root.isLeaf() ? null : root.children()[0];
+            if (stats != null) stats.recordRootDropped();
+            release(empty);
+        }
+    }
+
+    //an empty node from the pool for a split, or null
+    private BTreeNode take(boolean inner, int order) {
+        if (pool == null) return null;
+        BTreeNode node = pool.take(inner, order);
+        if (node == null) return null;
+        node.setEpoch(epoch);
+        if (stats != null) stats.recordNodeReuse();
+        return node;
+    }
+
+    //a node of an older epoch may still be in a snapshot, so only the tree's own nodes are pooled
+    private void release(BTreeNode node) {
+        if (pool == null || node.epoch() != epoch) return;
+        if (pool.release(node) && stats != null) stats.recordNodeRelease();
+    }
+
+    //a batch is not logged, so a rebuild under way would miss it
+    private void abandonRebuild() {
+        if (tuner != null) tuner.cancel();
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    private void ownRoot() {
+        if (root.epoch() != epoch) root = root.copy(epoch);
+    }
+
+    //replaces a child still shared with a snapshot by a private copy before it gets modified
+    private BTreeNode ownChild(BTreeNode node, int index) {
+        BTreeNode child = node.children()[index];
+        if (child.epoch() == epoch) return child;
+        BTreeNode copy = child.copy(epoch);
+        node.updateChildAt(index, copy);
+        return copy;
+    }
+
+    private boolean insertNonFull(BTreeNode node, int key, long value) {
+        int depth = 0;
+        boolean rightEdge = true;
+        int spineLength = 0;
+        while (node != null) {
+            int index = node.findIndex(key);
+            if (index < node.getKeysNumber() && key == node.keys()[index]) {
+                appendRun = 0;
+                return update(node, index, value, depth);
+            }
+            if (!node.isLeaf()) {
+                BTreeNode child = ownChild(node, index);
+                if (child.isFull()) {
+                    boolean append = rightEdge && index == node.getKeysNumber() && key > child.keys()[child.getKeysNumber() - 1];
+                    int median = splitPoint(child, append);
+                    node.addKeyAt(index, child.keys()[median], child.valueAt(median));
+                    splitChild(node, index, median);
+                    int[] keys = node.keys();
+                    if (key == keys[index]) {
+                        appendRun = 0;
+                        return update(node, index, value, depth);
+                    }
                     if (key > keys[index]) index++;
                 }
-                node = node.getChildren()[index];
+                if (counted || aggregate != null) depth = pushPath(depth, node, index);
+                rightEdge &= index == node.getKeysNumber();
+                if (rightEdge) spineLength = pushSpine(spineLength, node);
+                node = node.children()[index];
             } else {
-                node.addKey(key);
-                return;
+                node.addKeyAt(index, key, value);
+                updatePath(depth, 1);
+                if (rightEdge && index == node.getKeysNumber() - 1) {
+                    rightmostLeaf = node;
+                    spineDepth = spineLength;
+                    appendRun++;
+                } else {
+                    appendRun = 0;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int pushSpine(int depth, BTreeNode node) {
+        if (depth == spine.length) spine = Arrays.copyOf(spine, 2 * depth);
+        spine[depth] = node;
+        return depth + 1;
+    }
+
+    //a key already present takes the value, or comes back if it was deleted lazily
+    private boolean update(BTreeNode node, int index, long value, int depth) {
+        if (node.isDead(index)) {
+            node.revive(index);
+            node.setValueAt(index, value);
+            tombstones--;
+            updatePath(depth, 1);
+            return true;
+        }
+        lastValue = node.valueAt(index);
+        node.setValueAt(index, value);
+        return false;
+    }
+
+    //brings the counts and aggregates along the recorded path up to date, bottom-up as each aggregate is taken
+    //from the one below
+    private void updatePath(int depth, int delta) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (counted) path[i].addToCountAt(pathIndexes[i], delta);
+            aggregateChild(path[i], pathIndexes[i]);
+        }
+    }
+
+    //marks the key deleted where it is, without restructuring anything
+    private boolean bury(int key) {
+        BTreeNode node = root;
+        int depth = 0;
+        while (true) {
+            int index = node.findIndex(key);
+            if (index < node.getKeysNumber() && key == node.keys()[index]) {
+                if (node.isDead(index)) return false;
+                lastValue = node.valueAt(index);
+                node.markDead(index);
+                tombstones++;
+                updatePath(depth, -1);
+                return true;
             }
+            if (node.isLeaf()) return false;
+            if (counted || aggregate != null) depth = pushPath(depth, node, index);
+            node = ownChild(node, index);
+        }
+    }
+
+    private int pushPath(int depth, BTreeNode node, int index) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, 2 * depth);
+            pathIndexes = Arrays.copyOf(pathIndexes, 2 * depth);
         }
+        path[depth] = node;
+        pathIndexes[depth] = index;
+        return depth + 1;
     }
 
     private void insertNonFullIteratively(BTreeNode node, int key) {
         while (node != null) {
             if (!node.isLeaf()) {
-                int index = 0;
-                for (; index < node.getKeysNumber(); index++) {
-                    if (key == node.getKeys()[index]) return;
-                    if (key < node.getKeys()[index]) break;
-                }
+                int index = node.findIndex(key);
+                if (index < node.getKeysNumber() && key == node.keys()[index]) return;
 
-                if (node.getChildren()[index].getKeysNumber() == 2 * order - 1) {
-                    node.addKeyAt(index, node.getChildren()[index].getKeys()[order - 1]);
+                BTreeNode child = node.children()[index];
+                if (child.isFull()) {
+                    node.addKeyAt(index, child.keys()[child.order() - 1]);
                     splitChild(node, index);
-                    Integer[] keys = node.getKeys();
+                    int[] keys = node.keys();
                     if (key == keys[index]) return;
                     if (key > keys[index]) index++;
                 }
-                node = node.getChildren()[index];
+                node = node.children()[index];
             } else {
                 node.addKey(key);
                 return;
@@ -93,49 +1105,53 @@ public class BTree {
 
     private void insertNonFullRecursively(BTreeNode node, int key) {
         if (!node.isLeaf()) {
-            int index = 0;
-            for (; index < node.getKeysNumber(); index++) {
-                if (key == node.getKeys()[index]) return;
-                if (key < node.getKeys()[index]) break;
-            }
+            int index = node.findIndex(key);
+            if (index < node.getKeysNumber() && key == node.keys()[index]) return;
 
-            if (node.getChildren()[index].getKeysNumber() == 2 * order - 1) {
-                node.addKeyAt(index, node.getChildren()[index].getKeys()[order - 1]);
+            BTreeNode child = node.children()[index];
+            if (child.isFull()) {
+                node.addKeyAt(index, child.keys()[child.order() - 1]);
                 splitChild(node, index);
-                Integer[] keys = node.getKeys();
+                int[] keys = node.keys();
                 if (key == keys[index]) return;
                 if (key > keys[index]) index++;
             }
-            insertNonFull(node.getChildren()[index], key);
+            insertNonFull(node.children()[index], key, 0);
         } else {
             node.addKey(key);
         }
     }
 
-    private void delete(BTreeNode node, int key) {
-        if (node == null) return;
+    private boolean delete(BTreeNode node, int key) {
+        if (node == null) return false;
         if (!node.isLeaf()) {
-            Integer[] nodeKeys = node.getKeys();
-            BTreeNode[] nodeChildren = node.getChildren();
-            int index;
-            for (index = 0; index < node.getKeysNumber(); index++) {
-                if (key == nodeKeys[index]) {
-                    if (nodeChildren[index].getKeysNumber() > order - 1) {
-                        inOrderPredecessor(node, index);
-                        return;
-                    }
-                    if (nodeChildren[index + 1].getKeysNumber() > order - 1) {
-                        inOrderSuccessor(node, index + 1);
-                        return;
-                    }
+            int[] nodeKeys = node.keys();
+            BTreeNode[] nodeChildren = node.children();
+            int index = node.findIndex(key);
+            //the children of a node are all leaves or all inner nodes, so they share an order
+            int minKeys = nodeChildren[0].order() - 1;
+            if (index < node.getKeysNumber() && key == nodeKeys[index]) {
+                if (nodeChildren[index].getKeysNumber() > minKeys) {
+                    long removedValue = node.valueAt(index);
+                    inOrderPredecessor(node, index);
+                    lastValue = removedValue;
+                    return true;
+                }
+                if (nodeChildren[index + 1].getKeysNumber() > minKeys) {
+                    long removedValue = node.valueAt(index);
+                    inOrderSuccessor(node, index + 1);
+                    lastValue = removedValue;
+                    return true;
                 }
-                if (key <= nodeKeys[index]) break;
+                //both neighbours are minimal: pull the key down into their merge
+                mergeChildren(node, index + 1);
+                return deleteFromChild(node, index, key);
             }
 
-            if (nodeChildren[index].getKeysNumber() == order - 1) {
-                if (index < node.getKeysNumber() && nodeChildren[index + 1].getKeysNumber() > order - 1)
+            if (nodeChildren[index].getKeysNumber() == minKeys) {
+                if (index < node.getKeysNumber() && nodeChildren[index + 1].getKeysNumber() > minKeys)
                     borrowKeyFromRight(node, index);
-                else if (index > 0 && nodeChildren[index - 1].getKeysNumber() > order - 1)
+                else if (index > 0 && nodeChildren[index - 1].getKeysNumber() > minKeys)
                     borrowKeyFromLeft(node, index);
                 else if (index < node.getKeysNumber())
                     mergeChildren(node, index + 1);
@@ -144,170 +1160,445 @@ public class BTree {
                     index--;
                 }
             }
-            delete(node.getChildren()[index], key);
-        } else
-            node.deleteKey(key);
+            return deleteFromChild(node, index, key);
+        }
+        int index = node.findIndex(key);
+        if (index == node.getKeysNumber() || key != node.keys()[index]) return false;
+        lastValue = node.valueAt(index);
+        node.deleteKeyAt(index);
+        return true;
+    }
+
+    private boolean deleteFromChild(BTreeNode node, int index, int key) {
+        if (!delete(ownChild(node, index), key)) return false;
+        if (counted) node.addToCountAt(index, -1);
+        aggregateChild(node, index);
+        return true;
+    }
+
+    private Split insertRun(BTreeNode node, int[] keys, int from, int to) {
+        if (node.isLeaf()) {
+            int keysNumber = node.getKeysNumber();
+            int[] nodeKeys = node.keys();
+            int[] merged = new int[keysNumber + to - from];
+            int count = 0;
+            int i = 0;
+            while (i < keysNumber || from < to) {
+                if (from == to || (i < keysNumber && nodeKeys[i] < keys[from])) merged[count++] = nodeKeys[i++];
+                else if (i == keysNumber || keys[from] < nodeKeys[i]) merged[count++] = keys[from++];
+                else {
+                    merged[count++] = nodeKeys[i++];
+                    from++;
+                }
+            }
+            size += count - keysNumber;
+            return splitNode(node, merged, count, null, null, null);
+        }
+
+        int keysNumber = node.getKeysNumber();
+        int[] nodeKeys = node.keys();
+        BTreeNode[] children = node.children();
+        Split[] splits = null;
+        int splitKeys = 0;
+        while (from < to) {
+            int index = node.findIndex(keys[from]);
+            if (index < keysNumber && nodeKeys[index] == keys[from]) {
+                from++;
+                continue;
+            }
+            int end = index < keysNumber ? lowerBound(keys, from, to, nodeKeys[index]) : to;
+            int sizeBefore = size;
+            Split split = insertRun(ownChild(node, index), keys, from, end);
+            if (counted) node.addToCountAt(index, size - sizeBefore);
+            if (split == null) aggregateChild(node, index);
+            if (split != null) {
+                if (splits == null) splits = new Split[keysNumber + 1];
+                splits[index] = split;
+                splitKeys += split.separators.length;
+            }
+            from = end;
+        }
+        if (splits == null) return null;
+
+        //splice the new siblings and their separators in next to the children they came from
+        int[] mergedKeys = new int[keysNumber + splitKeys];
+        BTreeNode[] mergedChildren = new BTreeNode[keysNumber + splitKeys + 1];
+        int[] mergedCounts = counted ? new int[mergedChildren.length] : null;
+        long[] mergedAggregates = aggregate != null ? new long[mergedChildren.length] : null;
+        int keyIndex = 0;
+        int childIndex = 0;
+        for (int i = 0; i <= keysNumber; i++) {
+            if (splits[i] == null) {
+                if (counted) mergedCounts[childIndex] = node.countAt(i);
+                if (aggregate != null) mergedAggregates[childIndex] = node.aggregateAt(i);
+                mergedChildren[childIndex++] = children[i];
+            } else {
+                Split split = splits[i];
+                for (int j = 0; j < split.nodes.length; j++) {
+                    if (counted) mergedCounts[childIndex] = split.nodes[j].subtreeSize();
+                    if (aggregate != null) mergedAggregates[childIndex] = split.nodes[j].aggregate(aggregate);
+                    mergedChildren[childIndex++] = split.nodes[j];
+                    if (j < split.separators.length) mergedKeys[keyIndex++] = split.separators[j];
+                }
+            }
+            if (i < keysNumber) mergedKeys[keyIndex++] = nodeKeys[i];
+        }
+        return splitNode(node, mergedKeys, keyIndex, mergedChildren, mergedCounts, mergedAggregates);
+    }
+
+    //refills the node with the keys, splitting them over as few new right siblings as needed
+    private Split splitNode(BTreeNode node, int[] keys, int keysNumber, BTreeNode[] children, int[] counts,
+                            long[] aggregates) {
+        int order = node.order();
+        if (keysNumber <= 2 * order - 1) {
+            node.assign(keys, 0, keysNumber, children, 0);
+            if (counts != null) node.setCounts(counts, 0);
+            if (aggregates != null) node.setAggregates(aggregates, 0);
+            return null;
+        }
+        BTreeNode[] nodes = new BTreeNode[BulkLoader.nodesNumber(order, 2 * order - 1, keysNumber)];
+        int[] separators = new int[nodes.length - 1];
+        nodes[0] = node;
+        for (int i = 1; i < nodes.length; i++)
+            nodes[i] = take(children != null, order);
+        BulkLoader.pack(order, search, keys, keysNumber, children, nodes, separators, epoch);
+        if (children != null) {
+            int childFrom = 0;
+            for (BTreeNode packed : nodes) {
+                if (counts != null) packed.setCounts(counts, childFrom);
+                if (aggregates != null) packed.setAggregates(aggregates, childFrom);
+                childFrom += packed.getChildrenNumber();
+            }
+        }
+        recordSplits(node, nodes.length - 1);
+        return new Split(separators, nodes);
+    }
+
+    private int deleteRun(BTreeNode node, int[] keys, int from, int to, int[] deferred, int deferredNumber) {
+        if (node.isLeaf()) {
+            size -= node.deleteKeys(keys, from, to);
+            return deferredNumber;
+        }
+
+        int keysNumber = node.getKeysNumber();
+        int[] nodeKeys = node.keys();
+        BTreeNode[] children = node.children();
+        while (from < to) {
+            int index = node.findIndex(keys[from]);
+            if (index < keysNumber && nodeKeys[index] == keys[from]) {
+                deferred[deferredNumber++] = keys[from++];
+                continue;
+            }
+            int end = index < keysNumber ? lowerBound(keys, from, to, nodeKeys[index]) : to;
+            int sizeBefore = size;
+            deferredNumber = deleteRun(ownChild(node, index), keys, from, end, deferred, deferredNumber);
+            if (counted) node.addToCountAt(index, size - sizeBefore);
+            aggregateChild(node, index);
+            from = end;
+        }
+        repairChildren(node);
+        return deferredNumber;
+    }
+
+    //brings every underfull child back to order - 1 keys by merging with or sharing keys with a neighbour
+    private void repairChildren(BTreeNode node) {
+        int index = 0;
+        while (index < node.getChildrenNumber()) {
+            if (node.children()[index].getKeysNumber() >= node.children()[index].order() - 1 || node.getChildrenNumber() == 1) {
+                index++;
+                continue;
+            }
+            index = index + 1 < node.getChildrenNumber() ? index : index - 1;
+            rebalanceChildren(node, index);
+        }
+    }
+
+    private void rebalanceChildren(BTreeNode node, int index) {
+        BTreeNode left = ownChild(node, index);
+        BTreeNode right = ownChild(node, index + 1);
+        int leftKeys = left.getKeysNumber();
+        int rightKeys = right.getKeysNumber();
+        int order = left.order();
+
+        int keysNumber = leftKeys + 1 + rightKeys;
+        int[] keys = new int[keysNumber];
+        System.arraycopy(left.keys(), 0, keys, 0, leftKeys);
+        keys[leftKeys] = node.keys()[index];
+        System.arraycopy(right.keys(), 0, keys, leftKeys + 1, rightKeys);
+        BTreeNode[] children = null;
+        int[] counts = null;
+        long[] aggregates = null;
+        if (!left.isLeaf()) {
+            children = new BTreeNode[keysNumber + 1];
+            System.arraycopy(left.children(), 0, children, 0, leftKeys + 1);
+            System.arraycopy(right.children(), 0, children, leftKeys + 1, rightKeys + 1);
+            if (counted) {
+                counts = new int[keysNumber + 1];
+                System.arraycopy(left.counts(), 0, counts, 0, leftKeys + 1);
+                System.arraycopy(right.counts(), 0, counts, leftKeys + 1, rightKeys + 1);
+            }
+            if (aggregate != null) {
+                aggregates = new long[keysNumber + 1];
+                System.arraycopy(left.aggregates(), 0, aggregates, 0, leftKeys + 1);
+                System.arraycopy(right.aggregates(), 0, aggregates, leftKeys + 1, rightKeys + 1);
+            }
+        }
+
+        if (keysNumber <= 2 * order - 1) {
+            left.assign(keys, 0, keysNumber, children, 0);
+            if (counts != null) left.setCounts(counts, 0);
+            if (aggregates != null) left.setAggregates(aggregates, 0);
+            node.deleteKeyAt(index);
+            node.deleteChildAt(index + 1);
+            release(right);
+            if (counted) node.setCountAt(index, left.subtreeSize());
+            aggregateChild(node, index);
+            recordMerge(left);
+        } else {
+            if (stats != null) {
+                if (leftKeys < rightKeys) stats.recordRightBorrow();
+                else stats.recordLeftBorrow();
+            }
+            int half = (keysNumber - 1) / 2;
+            left.assign(keys, 0, half, children, 0);
+            node.setKeyAt(index, keys[half]);
+            right.assign(keys, half + 1, keysNumber - half - 1, children, half + 1);
+            if (counts != null) {
+                left.setCounts(counts, 0);
+                right.setCounts(counts, half + 1);
+            }
+            if (aggregates != null) {
+                left.setAggregates(aggregates, 0);
+                right.setAggregates(aggregates, half + 1);
+            }
+            if (counted) {
+                node.setCountAt(index, left.subtreeSize());
+                node.setCountAt(index + 1, right.subtreeSize());
+            }
+            aggregateChild(node, index);
+            aggregateChild(node, index + 1);
+        }
+
+        //an emptied subtree can leave a lone underfull child behind, which now has siblings to lean on
+        if (children != null) {
+            repairChildren(left);
+            if (keysNumber > 2 * order - 1) repairChildren(right);
+        }
+    }
+
+    private static int lowerBound(int[] keys, int from, int to, int key) {
+        int index = Arrays.binarySearch(keys, from, to, key);
+        return index >= 0 ? index : -index - 1;
     }
 
     private void inOrderSuccessor(BTreeNode node, int index) {
-        BTreeNode successorRoot = node.getChildren()[index];
+        if (stats != null) stats.recordSuccessorReplacement();
+        BTreeNode successorRoot = ownChild(node, index);
         //Find successor and delete it
-        Integer successor = successorRoot.successor();
+        BTreeNode successorLeaf = successorRoot.firstLeaf();
+        int successor = successorLeaf.keys()[0];
+        long successorValue = successorLeaf.valueAt(0);
         //Delete successor
         delete(successorRoot, successor);
         //Replace old child with the new one
         node.updateChildAt(index, successorRoot);
+        if (counted) node.addToCountAt(index, -1);
+        aggregateChild(node, index);
         //replace the key to delete with the successor
         node.deleteKeyAt(index - 1);
-        node.addKeyAt(index - 1, successor);
+        node.addKeyAt(index - 1, successor, successorValue);
     }
 
     private void inOrderPredecessor(BTreeNode node, int index) {
-        BTreeNode predecessorRoot = node.getChildren()[index];
+        if (stats != null) stats.recordPredecessorReplacement();
+        BTreeNode predecessorRoot = ownChild(node, index);
         //Find predecessor and delete it
-        Integer predecessor = predecessorRoot.predecessor();
+        BTreeNode predecessorLeaf = predecessorRoot.lastLeaf();
+        int predecessor = predecessorLeaf.keys()[predecessorLeaf.getKeysNumber() - 1];
+        long predecessorValue = predecessorLeaf.valueAt(predecessorLeaf.getKeysNumber() - 1);
         //Delete predecessor
         delete(predecessorRoot, predecessor);
         //Replace old child with the new one
         node.updateChildAt(index, predecessorRoot);
+        if (counted) node.addToCountAt(index, -1);
+        aggregateChild(node, index);
         //replace the key to delete with the predecessor
         node.deleteKeyAt(index);
-        node.addKeyAt(index, predecessor);
+        node.addKeyAt(index, predecessor, predecessorValue);
     }
 
     private void mergeChildren(BTreeNode node, int index) {
-        BTreeNode[] children = node.getChildren();
-        BTreeNode right = children[index];
-        BTreeNode left = children[index - 1];
+        BTreeNode right = node.children()[index];
+        recordMerge(right);
+        BTreeNode left = ownChild(node, index - 1);
 
-        left.addKeyAt(left.getKeysNumber(), node.getKeys()[index - 1]);
+        left.addKeyAt(left.getKeysNumber(), node.keys()[index - 1], node.valueAt(index - 1));
 
-        for (Integer key : right.getKeys())
-            left.addKeyAt(left.getKeysNumber(), key);
+        int[] rightKeys = right.keys();
+        for (int i = 0; i < right.getKeysNumber(); i++)
+            left.addKeyAt(left.getKeysNumber(), rightKeys[i], right.valueAt(i));
 
         if (!right.isLeaf()) {
-            for (BTreeNode child : right.getChildren())
-                left.updateChildAt(left.getChildrenNumber(), child);
+            BTreeNode[] rightChildren = right.children();
+            for (int i = 0; i < right.getChildrenNumber(); i++) {
+                if (counted) left.setCountAt(left.getChildrenNumber(), right.countAt(i));
+                if (aggregate != null) left.setAggregateAt(left.getChildrenNumber(), right.aggregateAt(i));
+                left.updateChildAt(left.getChildrenNumber(), rightChildren[i]);
+            }
         }
+        if (counted) node.addToCountAt(index - 1, 1 + node.countAt(index));
         node.deleteKeyAt(index - 1);
         node.deleteChildAt(index);
         node.updateChildAt(index - 1, left);
+        aggregateChild(node, index - 1);
+        release(right);
     }
 
     private void borrowKeyFromRight(BTreeNode node, int index) {
-        BTreeNode[] children = node.getChildren();
-        BTreeNode target = children[index];
-        BTreeNode right = children[index + 1];
+        if (stats != null) stats.recordRightBorrow();
+        BTreeNode target = ownChild(node, index);
+        BTreeNode right = ownChild(node, index + 1);
 
         //Borrow the key from the right child
-        Integer rightKey = right.getKeys()[0];
+        int rightKey = right.keys()[0];
+        long rightValue = right.valueAt(0);
         right.deleteKeyAt(0);
 
         //assign the borrowed key to the parent node key
-        Integer parentKey = node.getKeys()[index];
+        int parentKey = node.keys()[index];
+        long parentValue = node.valueAt(index);
         node.deleteKeyAt(index);
-        node.addKeyAt(index, rightKey);
+        node.addKeyAt(index, rightKey, rightValue);
 
         //add the old parent node key to the child keys at the end
-        target.addKeyAt(target.getKeysNumber(), parentKey);
+        target.addKeyAt(target.getKeysNumber(), parentKey, parentValue);
 
         //move right node child[0] to the left node
+        int moved = 1;
         if (!right.isLeaf()) {
-            BTreeNode rightChild = right.getChildren()[0];
+            BTreeNode rightChild = right.children()[0];
+            if (counted) {
+                moved += right.countAt(0);
+                target.setCountAt(target.getChildrenNumber(), right.countAt(0));
+            }
+            if (aggregate != null) target.setAggregateAt(target.getChildrenNumber(), right.aggregateAt(0));
             right.deleteChildAt(0);
             target.updateChildAt(target.getChildrenNumber(), rightChild);
         }
+        if (counted) {
+            node.addToCountAt(index, moved);
+            node.addToCountAt(index + 1, -moved);
+        }
 
         node.updateChildAt(index, target);
         node.updateChildAt(index + 1, right);
+        aggregateChild(node, index);
+        aggregateChild(node, index + 1);
     }
 
     private void borrowKeyFromLeft(BTreeNode node, int index) {
-        BTreeNode[] children = node.getChildren();
-        BTreeNode target = children[index];
-        BTreeNode left = children[index - 1];
+        if (stats != null) stats.recordLeftBorrow();
+        BTreeNode target = ownChild(node, index);
+        BTreeNode left = ownChild(node, index - 1);
 
         //Borrow the key from the left child
-        Integer leftKey = left.getKeys()[left.getKeysNumber() - 1];
+        int leftKey = left.keys()[left.getKeysNumber() - 1];
+        long leftValue = left.valueAt(left.getKeysNumber() - 1);
         left.deleteKeyAt(left.getKeysNumber() - 1);
 
         //assign the borrowed key to the parent node key
-        Integer parentKey = node.getKeys()[index - 1];
+        int parentKey = node.keys()[index - 1];
+        long parentValue = node.valueAt(index - 1);
         node.deleteKeyAt(index - 1);
-        node.addKeyAt(index - 1, leftKey);
+        node.addKeyAt(index - 1, leftKey, leftValue);
 
         //add the old parent node key to the child keys
-        target.addKeyAt(0, parentKey);
+        target.addKeyAt(0, parentKey, parentValue);
 
         //move last left node child to the right node
+        int moved = 1;
         if (!left.isLeaf()) {
-            BTreeNode rightChild = left.getChildren()[left.getChildrenNumber() - 1];
+            BTreeNode rightChild = left.children()[left.getChildrenNumber() - 1];
+            int movedCount = counted ? left.countAt(left.getChildrenNumber() - 1) : 0;
+            long movedAggregate = aggregate != null ? left.aggregateAt(left.getChildrenNumber() - 1) : 0;
             left.deleteChildAt(left.getChildrenNumber() - 1);
             target.insertChildAt(0, rightChild);
+            if (aggregate != null) target.setAggregateAt(0, movedAggregate);
+            if (counted) {
+                moved += movedCount;
+                target.setCountAt(0, movedCount);
+            }
+        }
+        if (counted) {
+            node.addToCountAt(index, moved);
+            node.addToCountAt(index - 1, -moved);
         }
 
         node.updateChildAt(index, target);
         node.updateChildAt(index - 1, left);
+        aggregateChild(node, index);
+        aggregateChild(node, index - 1);
     }
 
     private void splitChild(BTreeNode parent, int index) {
-        BTreeNode child = parent.getChildren()[index];
-        BTreeNode[] nodes = child.split();
+        splitChild(parent, index, parent.children()[index].order() - 1);
+    }
+
+    private void splitChild(BTreeNode parent, int index, int median) {
+        BTreeNode child = ownChild(parent, index);
+        recordSplits(child, 1);
+        //the caller has put the median into the parent already
+        if (child.isDead(median)) parent.markDead(index);
+        BTreeNode[] nodes = child.split(median, take(!child.isLeaf(), child.order()));
         parent.updateChildAt(index, nodes[0]);
         parent.insertChildAt(index + 1, nodes[1]);
+        if (counted) {
+            parent.setCountAt(index, nodes[0].subtreeSize());
+            parent.setCountAt(index + 1, nodes[1].subtreeSize());
+        }
+        aggregateChild(parent, index);
+        aggregateChild(parent, index + 1);
+    }
+
+    private void recordSplits(BTreeNode node, int count) {
+        if (stats == null) return;
+        stats.recordSplits(count);
+        stats.recordLevelNodes(level(node), count);
+    }
+
+    private void recordMerge(BTreeNode node) {
+        if (stats == null) return;
+        stats.recordMerge();
+        stats.recordLevelNodes(level(node), -1);
+    }
+
+    //the level of a node counted up from the leaves
+    private static int level(BTreeNode node) {
+        int level = 0;
+        for (; !node.isLeaf(); node = node.children()[0])
+            level++;
+        return level;
     }
 
+    //whether every invariant holds, see validate
     public boolean isBalanced() {
-        if (root == null) return true;
-        if (!isValidRoot()) return false;
-        if (!root.isLeaf()) {
-            Queue<BTreeNode> queue = new LinkedList<>();
-            for (BTreeNode child : root.getChildren()) {
-                if (child != null) queue.offer(child);
-            }
-            List<BTreeNode> levelNodes = new ArrayList<>();
-            while (!queue.isEmpty()) {
-                int queueSize = queue.size();
-                for (int i = 0; i < queueSize; i++) {
-                    BTreeNode current = queue.poll();
-                    if (!current.isValid()) return false;
-                    levelNodes.add(current);
-                }
+        return validate() == null;
+    }
 
-                for (int i = 1; i < levelNodes.size(); i++) {
-                    BTreeNode current = levelNodes.get(i);
-                    if (current.isLeaf() != levelNodes.get(0).isLeaf()) return false;
-                    if (!current.isLeaf()) {
-                        for (BTreeNode child : current.getChildren())
-                            if (child != null) queue.offer(child);
-                    }
-                }
-                levelNodes.clear();
-            }
-        }
-        return true;
+    //checks the keys, bounds, occupancy, depth and cached counts and aggregates of every node in one parallel pass,
+    //returning the first violation found with its path, or null for a sound tree
+    public TreeViolation validate() {
+        return TreeValidator.validate(this);
     }
 
-    private boolean isValidRoot() {
-        Integer[] keys = root.getKeys();
-        int keysCount = 1;
-        for (int i = 1; i < keys.length; i++) {
-            if (keys[i] == null) break;
-            if (keys[i] <= keys[i - 1]) return false;
-            keysCount++;
-        }
-        if (keysCount != root.getKeysNumber() || keysCount < 1 || keysCount > 2 * order - 1)
-            return false;
+    private static final class Split {
+        private final int[] separators;
+        //the split node followed by its new right siblings
+        private final BTreeNode[] nodes;
 
-        if (!root.isLeaf()) {
-            BTreeNode[] children = root.getChildren();
-            int childrenCount = 0;
-            for (BTreeNode child : children) {
-                if (child == null) break;
-                childrenCount++;
-            }
-            return childrenCount == root.getChildrenNumber() && keysCount == childrenCount - 1;
+        private Split(int[] separators, BTreeNode[] nodes) {
+            this.separators = separators;
+            this.nodes = nodes;
         }
-        return true;
     }
 }
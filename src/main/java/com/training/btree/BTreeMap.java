@@ -0,0 +1,96 @@
+package com.training.btree;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+public class BTreeMap {
+    private final BTree tree;
+    private final long missingValue;
+
+    public BTreeMap(int order) {
+        this(order, Long.MIN_VALUE);
+    }
+
+    public BTreeMap(int order, long missingValue) {
+        this(order, SearchStrategy.forOrder(order), missingValue);
+    }
+
+    public BTreeMap(int order, SearchStrategy search, long missingValue) {
+        this.tree = new BTree(order, search, true);
+        this.missingValue = missingValue;
+    }
+
+    private BTreeMap(BTree tree, long missingValue) {
+        this.tree = tree;
+        this.missingValue = missingValue;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        tree.writeTo(out);
+    }
+
+    public void writeTo(FileChannel channel) throws IOException {
+        tree.writeTo(channel);
+    }
+
+    public static BTreeMap readFrom(InputStream in, long missingValue) throws IOException {
+        return new BTreeMap(TreeImage.read(Channels.newChannel(in), true), missingValue);
+    }
+
+    public static BTreeMap readFrom(FileChannel channel, long missingValue) throws IOException {
+        return new BTreeMap(TreeImage.read(channel, true), missingValue);
+    }
+
+    public BTreeMap snapshot() {
+        return new BTreeMap(tree.snapshot(), missingValue);
+    }
+
+    public long get(int key) {
+        return tree.get(key, missingValue);
+    }
+
+    //returns the previous value of the key, or the missing value if the key was absent
+    public long put(int key, long value) {
+        return tree.put(key, value) ? missingValue : tree.lastValue();
+    }
+
+    //returns the removed value, or the missing value if the key was absent
+    public long remove(int key) {
+        return tree.remove(key) ? tree.lastValue() : missingValue;
+    }
+
+    public boolean containsKey(int key) {
+        return tree.contains(key);
+    }
+
+    public int floorKey(int key) {
+        return tree.floorKey(key);
+    }
+
+    public int ceilingKey(int key) {
+        return tree.ceilingKey(key);
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    public boolean isEmpty() {
+        return tree.isEmpty();
+    }
+
+    public long missingValue() {
+        return missingValue;
+    }
+
+    public boolean isBalanced() {
+        return tree.isBalanced();
+    }
+
+    public TreeViolation validate() {
+        return tree.validate();
+    }
+}
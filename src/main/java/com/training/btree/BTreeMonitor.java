@@ -0,0 +1,116 @@
+package com.training.btree;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+//publishes the stats of a tree over JMX; the shape attributes read the per-level counters the writer keeps, so a
+//poll from another thread never walks the tree
+public class BTreeMonitor implements BTreeStatsMXBean {
+    private final BTree tree;
+
+    public BTreeMonitor(BTree tree) {
+        this.tree = tree;
+        tree.enableStats();
+    }
+
+    //registers a monitor of the tree with the platform MBean server as com.training.btree:type=BTree,name=<name>
+    public static ObjectName register(BTree tree, String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.training.btree:type=BTree,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new BTreeMonitor(tree), objectName);
+        return objectName;
+    }
+
+    @Override
+    public long getSplits() {
+        return stats().splits();
+    }
+
+    @Override
+    public long getMerges() {
+        return stats().merges();
+    }
+
+    @Override
+    public long getLeftBorrows() {
+        return stats().leftBorrows();
+    }
+
+    @Override
+    public long getRightBorrows() {
+        return stats().rightBorrows();
+    }
+
+    @Override
+    public long getPredecessorReplacements() {
+        return stats().predecessorReplacements();
+    }
+
+    @Override
+    public long getSuccessorReplacements() {
+        return stats().successorReplacements();
+    }
+
+    @Override
+    public long getCompactions() {
+        return stats().compactions();
+    }
+
+    @Override
+    public long getRebuilds() {
+        return stats().rebuilds();
+    }
+
+    @Override
+    public long getReusedNodes() {
+        return stats().reusedNodes();
+    }
+
+    @Override
+    public long getReleasedNodes() {
+        return stats().releasedNodes();
+    }
+
+    @Override
+    public int getPooledNodes() {
+        return tree.pooledNodes();
+    }
+
+    @Override
+    public int getTombstoneCount() {
+        return tree.tombstones();
+    }
+
+    @Override
+    public int getHeight() {
+        return stats().height();
+    }
+
+    @Override
+    public int getNodeCount() {
+        return stats().nodeCount();
+    }
+
+    @Override
+    public int getKeyCount() {
+        return tree.size();
+    }
+
+    @Override
+    public double[] getFillFactorPerLevel() {
+        return stats().fillFactorPerLevel(tree.order(), tree.leafOrder(), (long) tree.size() + tree.tombstones());
+    }
+
+    @Override
+    public void resetCounters() {
+        stats().reset();
+    }
+
+    //stats switched off behind the monitor's back read as zeros
+    private BTreeStats stats() {
+        BTreeStats stats = tree.stats();
+        return stats != null ? stats : new BTreeStats();
+    }
+}
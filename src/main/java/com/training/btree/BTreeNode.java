@@ -3,70 +3,181 @@ package com.training.btree;
 import java.util.Arrays;
 
 public class BTreeNode {
-    private final Integer[] keys;
+    private final int[] keys;
+    private final long[] values;
+    private final SearchStrategy search;
     private BTreeNode[] children;
+    //keys under each child, allocated once a tree answers order statistics
+    private int[] counts;
+    //the aggregate of each child, allocated once a tree maintains one
+    private long[] aggregates;
+    //keys deleted lazily, still in place until the tree compacts; null while there are none
+    private boolean[] dead;
+    private int deadNumber;
+    //right sibling of a leaf, only linked by BPlusTree
+    private BTreeNode next;
 
     private int keysNumber = 0;
     private int childrenNumber = 0;
+    //snapshot epoch of the owning tree when this node was created or copied
+    private int epoch;
 
     public BTreeNode(int order, int key) {
-        this.keys = new Integer[2 * order - 1];
-        this.children = null;
+        this(order, key, SearchStrategy.forOrder(order));
+    }
+
+    public BTreeNode(int order, int key, SearchStrategy search) {
+        this(order, search, false);
         addKeyAt(0, key);
     }
 
-    void addKey(Integer key) {
-        if (key == null) return;
+    public BTreeNode(int order, int key, long value, SearchStrategy search) {
+        this(order, search, true);
+        addKeyAt(0, key, value);
+    }
+
+    BTreeNode(int order, SearchStrategy search, boolean withValues) {
+        this.keys = new int[2 * order - 1];
+        this.values = withValues ? new long[2 * order - 1] : null;
+        this.search = search;
+        this.children = null;
+    }
 
-        int index;
-        for (index = 0; index < keysNumber; index++) {
-            if (key.compareTo(keys[index]) == 0) return;
-            if (keys[index] > key) break;
-        }
+    boolean addKey(int key) {
+        int index = findIndex(key);
+        if (index < keysNumber && keys[index] == key) return false;
 
         addKeyAt(index, key);
+        return true;
     }
 
-    void addKeyAt(int index, Integer key) {
-        if (key == null || index > keysNumber || index < 0) return;
+    void addKeyAt(int index, int key) {
+        addKeyAt(index, key, 0);
+    }
 
-        for (int j = keysNumber; j > index; j--) {
-            keys[j] = keys[j - 1];
-        }
+    void addKeyAt(int index, int key, long value) {
+        if (index > keysNumber || index < 0) return;
+
+        System.arraycopy(keys, index, keys, index + 1, keysNumber - index);
         keys[index] = key;
+        if (values != null) {
+            System.arraycopy(values, index, values, index + 1, keysNumber - index);
+            values[index] = value;
+        }
+        if (dead != null) {
+            System.arraycopy(dead, index, dead, index + 1, keysNumber - index);
+            dead[index] = false;
+        }
 
         keysNumber++;
     }
 
-    public void deleteKey(Integer key) {
-        if (key == null) return;
+    public boolean deleteKey(int key) {
+        int index = findIndex(key);
+        if (index == keysNumber || keys[index] != key) return false;
 
-        int index;
-        for (index = 0; index < keysNumber; index++) {
-            if (key.compareTo(keys[index]) < 0) return;
-            if (key.compareTo(keys[index]) == 0) break;
-        }
         deleteKeyAt(index);
+        return true;
     }
 
     public void deleteKeyAt(int index) {
-        if (index < 0 || index >= keysNumber || keys[index] == null) return;
-
-        while (index < keysNumber - 1) {
-            keys[index] = keys[index + 1];
-            index++;
+        if (index < 0 || index >= keysNumber) return;
+
+        System.arraycopy(keys, index + 1, keys, index, keysNumber - index - 1);
+        if (values != null) System.arraycopy(values, index + 1, values, index, keysNumber - index - 1);
+        if (dead != null) {
+            if (dead[index]) deadNumber--;
+            System.arraycopy(dead, index + 1, dead, index, keysNumber - index - 1);
+            dead[keysNumber - 1] = false;
         }
-        keys[index] = null;
         keysNumber--;
     }
 
+    //replaces the content with count keys from source and, unless sourceChildren is null, the count + 1 children
+    //that follow childFrom
+    void assign(int[] source, int from, int count, BTreeNode[] sourceChildren, int childFrom) {
+        System.arraycopy(source, from, keys, 0, count);
+        keysNumber = count;
+        if (sourceChildren == null) {
+            if (children != null) Arrays.fill(children, 0, childrenNumber, null);
+            childrenNumber = 0;
+            return;
+        }
+
+        if (children == null) allocateChildren();
+        System.arraycopy(sourceChildren, childFrom, children, 0, count + 1);
+        if (childrenNumber > count + 1) Arrays.fill(children, count + 1, childrenNumber, null);
+        childrenNumber = count + 1;
+    }
+
+    //deletes the keys of the ascending run keys[from, to) in one pass and returns how many were present
+    int deleteKeys(int[] sortedKeys, int from, int to) {
+        int kept = 0;
+        int run = from;
+        for (int i = 0; i < keysNumber; i++) {
+            while (run < to && sortedKeys[run] < keys[i]) run++;
+            if (run < to && sortedKeys[run] == keys[i]) continue;
+            keys[kept] = keys[i];
+            if (values != null) values[kept] = values[i];
+            kept++;
+        }
+        int deleted = keysNumber - kept;
+        keysNumber = kept;
+        return deleted;
+    }
+
+    void setKeysNumber(int keysNumber) {
+        this.keysNumber = keysNumber;
+    }
+
+    void setKeyAt(int index, int key) {
+        keys[index] = key;
+    }
+
+    boolean isDead(int index) {
+        return dead != null && dead[index];
+    }
+
+    void markDead(int index) {
+        if (dead == null) dead = new boolean[keys.length];
+        if (!dead[index]) deadNumber++;
+        dead[index] = true;
+    }
+
+    void revive(int index) {
+        if (isDead(index)) deadNumber--;
+        if (dead != null) dead[index] = false;
+    }
+
+    int deadNumber() {
+        return deadNumber;
+    }
+
+    //the number of live keys among the first index keys
+    int liveKeysBefore(int index) {
+        if (deadNumber == 0) return index;
+        int live = 0;
+        for (int i = 0; i < index; i++) {
+            if (!dead[i]) live++;
+        }
+        return live;
+    }
+
+    long valueAt(int index) {
+        return values == null ? 0 : values[index];
+    }
+
+    void setValueAt(int index, long value) {
+        if (values != null) values[index] = value;
+    }
+
     public void insertChildAt(int index, BTreeNode rightChild) {
         this.rightShiftChildren(index);
         this.updateChildAt(index, rightChild);
     }
 
     public void updateChildAt(int index, BTreeNode child) {
-        if (this.children == null && index == 0) this.children = new BTreeNode[this.keys.length + 1];
+        if (this.children == null && index == 0) allocateChildren();
         else if (this.children == null || index < 0 || index >= this.children.length || child == null) return;
 
         if (this.children[index] == null) this.childrenNumber++;
@@ -77,6 +188,8 @@ public class BTreeNode {
         if (this.children == null || index < 0 || index >= this.children.length || this.children[index] == null)
             return;
 
+        if (counts != null) System.arraycopy(counts, index + 1, counts, index, childrenNumber - index - 1);
+        if (aggregates != null) System.arraycopy(aggregates, index + 1, aggregates, index, childrenNumber - index - 1);
         while (index < childrenNumber - 1) {
             children[index] = children[index + 1];
             index++;
@@ -86,63 +199,237 @@ public class BTreeNode {
     }
 
     private void rightShiftChildren(int from) {
+        if (counts != null) System.arraycopy(counts, from, counts, from + 1, childrenNumber - from);
+        if (aggregates != null) System.arraycopy(aggregates, from, aggregates, from + 1, childrenNumber - from);
         for (int i = childrenNumber; i > from; i--) {
             children[i] = children[i - 1];
         }
         children[from] = null;
+        if (counts != null) counts[from] = 0;
+    }
+
+    private void allocateChildren() {
+        children = new BTreeNode[keys.length + 1];
+    }
+
+    int countAt(int index) {
+        return counts[index];
+    }
+
+    void setCountAt(int index, int count) {
+        if (counts == null) counts = new int[keys.length + 1];
+        counts[index] = count;
+    }
+
+    void addToCountAt(int index, int delta) {
+        if (counts == null) counts = new int[keys.length + 1];
+        counts[index] += delta;
+    }
+
+    //takes the counts of its children from source, starting at from
+    void setCounts(int[] source, int from) {
+        if (counts == null) counts = new int[keys.length + 1];
+        System.arraycopy(source, from, counts, 0, childrenNumber);
+    }
+
+    long aggregateAt(int index) {
+        return aggregates[index];
+    }
+
+    void setAggregateAt(int index, long aggregate) {
+        if (aggregates == null) aggregates = new long[keys.length + 1];
+        aggregates[index] = aggregate;
     }
 
-    public Integer successor() {
+    //takes the aggregates of its children from source, starting at from
+    void setAggregates(long[] source, int from) {
+        if (aggregates == null) aggregates = new long[keys.length + 1];
+        System.arraycopy(source, from, aggregates, 0, childrenNumber);
+    }
+
+    //the aggregate of the subtree, from the aggregates of the children
+    long aggregate(Aggregate aggregate) {
+        long result = aggregate.identity();
+        for (int i = 0; i < keysNumber; i++) {
+            if (childrenNumber > 0) result = aggregate.combine(result, aggregates[i]);
+            if (!isDead(i)) result = aggregate.combine(result, aggregate.of(keys[i]));
+        }
+        if (childrenNumber > 0) result = aggregate.combine(result, aggregates[keysNumber]);
+        return result;
+    }
+
+    //the number of keys in the subtree, from the counts of the children
+    int subtreeSize() {
+        int size = keysNumber - deadNumber;
+        for (int i = 0; i < childrenNumber; i++) {
+            size += counts[i];
+        }
+        return size;
+    }
+
+    public int successor() {
+        return firstLeaf().keys[0];
+    }
+
+    public int predecessor() {
+        BTreeNode last = lastLeaf();
+        return last.keys[last.keysNumber - 1];
+    }
+
+    BTreeNode firstLeaf() {
         BTreeNode current = this;
         while (!current.isLeaf()) {
-            current = current.getChildren()[0];
+            current = current.children[0];
         }
-        return current.getKeys()[0];
+        return current;
     }
 
-    public Integer predecessor() {
+    BTreeNode lastLeaf() {
         BTreeNode current = this;
         while (!current.isLeaf()) {
             current = current.children[current.getChildrenNumber() - 1];
         }
-        return current.keys[current.getKeysNumber() - 1];
+        return current;
     }
 
     public BTreeNode[] split() {
-        int length = keys.length;
-        int medium = (length - 1) / 2;
-        int rightStart = 1 + medium;
+        return split((keys.length - 1) / 2);
+    }
 
-        BTreeNode rightNode = new BTreeNode((length + 1) / 2, keys[rightStart]);
+    //keeps the keys before the median and moves those after it to a new right sibling
+    BTreeNode[] split(int medium) {
+        return split(medium, null);
+    }
 
-        for (int index = 1 + rightStart; index < length; index++) {
-            rightNode.addKeyAt(index - rightStart, keys[index]);
+    //moves the keys after the median into the given empty node, or a new one if there is none
+    BTreeNode[] split(int medium, BTreeNode into) {
+        BTreeNode rightNode = splitFrom(medium + 1, into);
+        //the median goes up to the parent, which takes over its tombstone
+        if (isDead(medium)) {
+            dead[medium] = false;
+            deadNumber--;
         }
+        keysNumber = medium;
 
-        for (int index = length - 1; index >= medium; index--) {
-            deleteKeyAt(index);
+        return new BTreeNode[]{this, rightNode};
+    }
+
+    //moves the keys from index on, and the children after the key at index - 1, into a new right sibling
+    BTreeNode splitFrom(int index) {
+        return splitFrom(index, null);
+    }
+
+    private BTreeNode splitFrom(int index, BTreeNode into) {
+        BTreeNode rightNode = into != null ? into : new BTreeNode((keys.length + 1) / 2, search, values != null);
+
+        int moved = keysNumber - index;
+        System.arraycopy(keys, index, rightNode.keys, 0, moved);
+        if (values != null) System.arraycopy(values, index, rightNode.values, 0, moved);
+        rightNode.keysNumber = moved;
+        rightNode.epoch = epoch;
+        if (deadNumber > 0) {
+            for (int i = index; i < index + moved; i++) {
+                if (!dead[i]) continue;
+                rightNode.markDead(i - index);
+                dead[i] = false;
+                deadNumber--;
+            }
         }
+        keysNumber = index;
 
         if (!this.isLeaf()) {
-            for (int index = rightStart; index < length + 1; index++) {
-                rightNode.updateChildAt(rightNode.getChildrenNumber(), children[index]);
+            if (rightNode.children == null) rightNode.allocateChildren();
+            System.arraycopy(children, index, rightNode.children, 0, childrenNumber - index);
+            if (counts != null) {
+                if (rightNode.counts == null) rightNode.counts = new int[keys.length + 1];
+                System.arraycopy(counts, index, rightNode.counts, 0, childrenNumber - index);
             }
-            for (int i = length; i > medium; i--) {
-                deleteChildAt(i);
+            if (aggregates != null) {
+                if (rightNode.aggregates == null) rightNode.aggregates = new long[keys.length + 1];
+                System.arraycopy(aggregates, index, rightNode.aggregates, 0, childrenNumber - index);
             }
+            Arrays.fill(children, index, childrenNumber, null);
+            rightNode.childrenNumber = childrenNumber - index;
+            childrenNumber = index;
         }
 
-        return new BTreeNode[]{this, rightNode};
+        return rightNode;
+    }
+
+    //empties the node for reuse, dropping its references to children; its arrays are kept
+    void recycle() {
+        keysNumber = 0;
+        if (children != null) Arrays.fill(children, 0, childrenNumber, null);
+        childrenNumber = 0;
+        if (dead != null) {
+            Arrays.fill(dead, false);
+            deadNumber = 0;
+        }
+        next = null;
+    }
+
+    //whether the node has children arrays to reuse, as only nodes that were inner have
+    boolean hasChildrenArrays() {
+        return children != null;
+    }
+
+    BTreeNode copy(int epoch) {
+        BTreeNode copy = new BTreeNode((keys.length + 1) / 2, search, values != null);
+        System.arraycopy(keys, 0, copy.keys, 0, keysNumber);
+        if (values != null) System.arraycopy(values, 0, copy.values, 0, keysNumber);
+        copy.keysNumber = keysNumber;
+        if (dead != null) {
+            copy.dead = dead.clone();
+            copy.deadNumber = deadNumber;
+        }
+        if (children != null) {
+            copy.children = children.clone();
+            if (counts != null) copy.counts = counts.clone();
+            if (aggregates != null) copy.aggregates = aggregates.clone();
+            copy.childrenNumber = childrenNumber;
+        }
+        copy.epoch = epoch;
+        return copy;
+    }
+
+    int epoch() {
+        return epoch;
+    }
+
+    void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    BTreeNode next() {
+        return next;
+    }
+
+    void setNext(BTreeNode next) {
+        this.next = next;
     }
 
     public boolean isValid() {
+        return isValid((keys.length + 1) / 2 - 1);
+    }
+
+    //the order asks every node but the root for at least order - 1 keys
+    boolean isValid(int minKeys) {
         int order = (keys.length + 1) / 2;
 
-        if (!hasValidKeys(order)) return false;
-        if (!isLeaf() && !hasValidChildren(order)) return false;
+        if (!hasValidKeys(order, minKeys)) return false;
+        if (!isLeaf() && !hasValidChildren(minKeys)) return false;
         return isLeaf() || keysNumber == childrenNumber - 1;
     }
 
+    //the order the node was made for, which fixes how many keys it holds
+    int order() {
+        return (keys.length + 1) / 2;
+    }
+
+    boolean isFull() {
+        return keysNumber == keys.length;
+    }
+
     boolean isLeaf() {
         return this.childrenNumber == 0;
     }
@@ -155,7 +442,31 @@ public class BTreeNode {
         return childrenNumber;
     }
 
-    public Integer[] getKeys() {
+    int[] keys() {
+        return this.keys;
+    }
+
+    BTreeNode[] children() {
+        return this.children;
+    }
+
+    long[] values() {
+        return this.values;
+    }
+
+    int[] counts() {
+        return this.counts;
+    }
+
+    long[] aggregates() {
+        return this.aggregates;
+    }
+
+    boolean[] dead() {
+        return this.dead;
+    }
+
+    public int[] getKeys() {
         return Arrays.copyOf(this.keys, this.keysNumber);
     }
 
@@ -164,32 +475,25 @@ public class BTreeNode {
         return Arrays.copyOf(this.children, this.childrenNumber);
     }
 
-    private boolean hasValidKeys(int order) {
-        int keysCount = 1;
-        for (int i = 1; i < keys.length; i++) {
-            if (keys[i] == null) break;
+    private boolean hasValidKeys(int order, int minKeys) {
+        for (int i = 1; i < keysNumber; i++) {
             if (keys[i] <= keys[i - 1]) return false;
             if (!isLeaf() && (keys[i] <= children[i].predecessor() || keys[i] >= children[i + 1].successor()))
                 return false;
-            keysCount++;
         }
-        return keysCount == keysNumber && keysNumber > order - 2 && keysNumber < 2 * order;
+        return keysNumber >= minKeys && keysNumber < 2 * order;
     }
 
-    private boolean hasValidChildren(int order) {
+    private boolean hasValidChildren(int minKeys) {
         int childrenCount = 0;
         for (BTreeNode child : children) {
             if (child == null) break;
             childrenCount++;
         }
-        return childrenCount == childrenNumber && childrenNumber > order - 1 && keysNumber < 2 * order + 1;
+        return childrenCount == childrenNumber && childrenNumber > minKeys && keysNumber <= children.length;
     }
 
     public int findIndex(int key) {
-        int index = 0;
-        for (; index < this.keysNumber; index++) {
-            if (key <= keys[index]) return index;
-        }
-        return index;
+        return search.findIndex(keys, keysNumber, key);
     }
 }
@@ -0,0 +1,152 @@
+package com.training.btree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+
+//walks the keys in [low, high) in order; a node is a row of items, child 0, key 0, child 1, ..., so that
+//item 2i is child i and item 2i + 1 is key i, and a split hands over a prefix of the items of the outermost node
+final class BTreeSpliterator implements Spliterator.OfInt {
+    private static final int CHARACTERISTICS = ORDERED | SORTED | DISTINCT | NONNULL;
+
+    private final long low;
+    private final long high;
+    private BTreeNode[] nodes;
+    private int[] positions;
+    private int[] ends;
+    private int depth;
+    private long estimate;
+    //the estimate is exact for a whole tree that was not split
+    private boolean sized;
+    //the nodes count the keys under each child, so every split of a whole tree knows its exact size
+    private final boolean counted;
+
+    BTreeSpliterator(BTreeNode root, int size, long low, long high, boolean counted) {
+        this.low = low;
+        this.high = high;
+        this.nodes = new BTreeNode[8];
+        this.positions = new int[8];
+        this.ends = new int[8];
+        this.estimate = size;
+        this.sized = low == Integer.MIN_VALUE && high == Integer.MAX_VALUE + 1L;
+        this.counted = counted && sized;
+        if (root != null && low < high) push(root);
+    }
+
+    private BTreeSpliterator(BTreeSpliterator parent, int end, long estimate) {
+        this.low = parent.low;
+        this.high = parent.high;
+        this.nodes = parent.nodes.clone();
+        this.positions = parent.positions.clone();
+        this.ends = parent.ends.clone();
+        this.depth = parent.depth;
+        this.ends[0] = end;
+        this.estimate = estimate;
+        this.sized = parent.counted;
+        this.counted = parent.counted;
+    }
+
+    @Override
+    public boolean tryAdvance(IntConsumer action) {
+        while (depth > 0) {
+            int top = depth - 1;
+            if (positions[top] == ends[top]) {
+                depth--;
+                continue;
+            }
+            BTreeNode node = nodes[top];
+            int item = positions[top]++;
+            if ((item & 1) == 0) {
+                if (!node.isLeaf()) push(node.children()[item >> 1]);
+                continue;
+            }
+            int key = node.keys()[item >> 1];
+            if (node.isDead(item >> 1)) continue;
+            if (key >= high) {
+                depth = 0;
+                return false;
+            }
+            if (key >= low) {
+                if (sized) estimate--;
+                action.accept(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Spliterator.OfInt trySplit() {
+        if (depth == 0) return null;
+        //a lone child left in the outermost node is split along its own items instead
+        while (depth == 1 && ends[0] - positions[0] == 1 && (positions[0] & 1) == 0 && !nodes[0].isLeaf()) {
+            BTreeNode child = nodes[0].children()[positions[0] >> 1];
+            depth = 0;
+            push(child);
+        }
+        int remaining = ends[0] - positions[0];
+        if (remaining < 2) return null;
+
+        //the prefix takes whatever is under way above the outermost node, this one restarts at the middle
+        int middle = positions[0] + remaining / 2;
+        long prefixEstimate;
+        if (counted) {
+            prefixEstimate = itemsSize(nodes[0], positions[0], middle);
+            for (int level = 1; level < depth; level++)
+                prefixEstimate += itemsSize(nodes[level], positions[level], ends[level]);
+            estimate -= prefixEstimate;
+        } else {
+            estimate = Math.max(estimate / 2, 1);
+            prefixEstimate = estimate;
+            sized = false;
+        }
+        BTreeSpliterator prefix = new BTreeSpliterator(this, middle, prefixEstimate);
+        positions[0] = middle;
+        depth = 1;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return depth == 0 ? 0 : estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        if (counted) return CHARACTERISTICS | SIZED | SUBSIZED;
+        return sized ? CHARACTERISTICS | SIZED : CHARACTERISTICS;
+    }
+
+    @Override
+    public Comparator<? super Integer> getComparator() {
+        return null;
+    }
+
+    //the number of keys under the items [from, to) of the node
+    private static long itemsSize(BTreeNode node, int from, int to) {
+        long size = 0;
+        for (int item = from; item < to; item++) {
+            if ((item & 1) == 1) {
+                if (!node.isDead(item >> 1)) size++;
+            }
+            else if (!node.isLeaf()) size += node.countAt(item >> 1);
+        }
+        return size;
+    }
+
+    //covers only the items of the node that may hold keys in [low, high)
+    private void push(BTreeNode node) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * depth);
+            positions = Arrays.copyOf(positions, 2 * depth);
+            ends = Arrays.copyOf(ends, 2 * depth);
+        }
+        int first = low == Integer.MIN_VALUE ? 0 : node.findIndex((int) low);
+        int last = high > Integer.MAX_VALUE ? node.getKeysNumber() : node.findIndex((int) high);
+        nodes[depth] = node;
+        positions[depth] = 2 * first;
+        ends[depth] = 2 * last + 1;
+        depth++;
+    }
+}
@@ -0,0 +1,190 @@
+package com.training.btree;
+
+import java.util.Arrays;
+
+//structural activity of a BTree since its stats were enabled or reset; plain fields, so another thread may see them late
+public final class BTreeStats {
+    private long splits;
+    private long merges;
+    private long leftBorrows;
+    private long rightBorrows;
+    private long predecessorReplacements;
+    private long successorReplacements;
+    private long compactions;
+    private long rebuilds;
+    private long reusedNodes;
+    private long releasedNodes;
+    //nodes on each level, the leaves first, kept up by the writer so the shape is read without walking the tree; the
+    //array is only replaced, never shrunk under a reader
+    private volatile int[] levelNodes = new int[0];
+    private int height;
+
+    void recordSplits(int count) {
+        splits += count;
+    }
+
+    void recordMerge() {
+        merges++;
+    }
+
+    void recordLeftBorrow() {
+        leftBorrows++;
+    }
+
+    void recordRightBorrow() {
+        rightBorrows++;
+    }
+
+    void recordPredecessorReplacement() {
+        predecessorReplacements++;
+    }
+
+    void recordSuccessorReplacement() {
+        successorReplacements++;
+    }
+
+    void recordCompaction() {
+        compactions++;
+    }
+
+    void recordRebuild() {
+        rebuilds++;
+    }
+
+    void recordNodeReuse() {
+        reusedNodes++;
+    }
+
+    void recordNodeRelease() {
+        releasedNodes++;
+    }
+
+    void recordLevelNodes(int level, int delta) {
+        levelNodes[level] += delta;
+    }
+
+    //a new root on top of the tree
+    void recordRootAdded() {
+        if (height == levelNodes.length) levelNodes = Arrays.copyOf(levelNodes, height + 4);
+        levelNodes[height++] = 1;
+    }
+
+    //the root dropped, its only child or nothing taking its place
+    void recordRootDropped() {
+        levelNodes[--height] = 0;
+    }
+
+    //counts the nodes of every level anew, after the tree was replaced wholesale
+    void countLevels(BTreeNode root) {
+        int height = 0;
+        for (BTreeNode node = root; node != null; node = node.isLeaf() ? null : node.children()[0])
+            height++;
+        int[] nodes = new int[height + 4];
+        if (root != null) countLevels(root, height - 1, nodes);
+        this.height = 0;
+        levelNodes = nodes;
+        this.height = height;
+    }
+
+    private static void countLevels(BTreeNode node, int level, int[] nodes) {
+        nodes[level]++;
+        if (node.isLeaf()) return;
+        for (int i = 0; i < node.getChildrenNumber(); i++)
+            countLevels(node.children()[i], level - 1, nodes);
+    }
+
+    public long splits() {
+        return splits;
+    }
+
+    public long merges() {
+        return merges;
+    }
+
+    public long leftBorrows() {
+        return leftBorrows;
+    }
+
+    public long rightBorrows() {
+        return rightBorrows;
+    }
+
+    public long predecessorReplacements() {
+        return predecessorReplacements;
+    }
+
+    public long successorReplacements() {
+        return successorReplacements;
+    }
+
+    public long compactions() {
+        return compactions;
+    }
+
+    //rebuilds with the node orders picked by auto-tuning
+    public long rebuilds() {
+        return rebuilds;
+    }
+
+    //nodes splits took from the node pool instead of allocating
+    public long reusedNodes() {
+        return reusedNodes;
+    }
+
+    //nodes merges and root collapses handed to the node pool
+    public long releasedNodes() {
+        return releasedNodes;
+    }
+
+    //the number of levels the writer last left the tree with
+    public int height() {
+        return Math.min(height, levelNodes.length);
+    }
+
+    public int nodeCount() {
+        int[] nodes = levelNodes;
+        int count = 0;
+        for (int level = 0; level < Math.min(height, nodes.length); level++)
+            count += nodes[level];
+        return count;
+    }
+
+    //keys held per key slot on each level, the root first, for a tree of the given orders holding keys keys in all;
+    //every inner node holds a key fewer than it has children, so the levels below give the keys of the levels above
+    double[] fillFactorPerLevel(int innerOrder, int leafOrder, long keys) {
+        int[] nodes = levelNodes;
+        int height = Math.min(this.height, nodes.length);
+        double[] fill = new double[height];
+        if (height == 0) return fill;
+        //the inner keys add up to the leaves less the root
+        long leafKeys = keys - nodes[0] + nodes[height - 1];
+        for (int level = 0; level < height; level++) {
+            long levelKeys = level == 0 ? leafKeys : nodes[level - 1] - nodes[level];
+            long slots = (long) nodes[level] * (2 * (level == 0 ? leafOrder : innerOrder) - 1);
+            fill[height - 1 - level] = slots == 0 ? 0 : (double) levelKeys / slots;
+        }
+        return fill;
+    }
+
+    //clears the activity counters; the shape of the tree stays
+    public void reset() {
+        splits = 0;
+        merges = 0;
+        leftBorrows = 0;
+        rightBorrows = 0;
+        predecessorReplacements = 0;
+        successorReplacements = 0;
+        compactions = 0;
+        rebuilds = 0;
+        reusedNodes = 0;
+        releasedNodes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "splits=" + splits + ", merges=" + merges + ", leftBorrows=" + leftBorrows + ", rightBorrows=" + rightBorrows
+                + ", predecessorReplacements=" + predecessorReplacements + ", successorReplacements=" + successorReplacements
+                + ", compactions=" + compactions + ", rebuilds=" + rebuilds
+                + ", reusedNodes=" + reusedNodes + ", releasedNodes=" + releasedNodes;
+    }
+}
@@ -0,0 +1,37 @@
+package com.training.btree;
+
+public interface BTreeStatsMXBean {
+    long getSplits();
+
+    long getMerges();
+
+    long getLeftBorrows();
+
+    long getRightBorrows();
+
+    long getPredecessorReplacements();
+
+    long getSuccessorReplacements();
+
+    long getCompactions();
+
+    long getRebuilds();
+
+    long getReusedNodes();
+
+    long getReleasedNodes();
+
+    int getPooledNodes();
+
+    int getTombstoneCount();
+
+    int getHeight();
+
+    int getNodeCount();
+
+    int getKeyCount();
+
+    double[] getFillFactorPerLevel();
+
+    void resetCounters();
+}
@@ -0,0 +1,131 @@
+package com.training.btree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+//a fixed number of frames holding decoded pages; pinned pages stay put, dirty ones are written back when evicted or flushed
+public final class BufferPool {
+    static final int MIN_FRAMES = 8;
+
+    private final PageFile file;
+    private final int order;
+    private final SearchStrategy search;
+    private final EvictionPolicy policy;
+    private final Page[] frames;
+    private final int[] pins;
+    private final Map<Integer, Integer> frameOf = new HashMap<>();
+    //frames [0, used) have held a page, freed frames are kept in a stack
+    private int used;
+    private final int[] freeFrames;
+    private int freeFramesNumber;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    BufferPool(PageFile file, int order, SearchStrategy search, int capacity, EvictionPolicy policy) {
+        if (capacity < MIN_FRAMES) throw new IllegalArgumentException("A buffer pool needs at least " + MIN_FRAMES + " frames");
+        this.file = file;
+        this.order = order;
+        this.search = search;
+        this.policy = policy;
+        this.frames = new Page[capacity];
+        this.pins = new int[capacity];
+        this.freeFrames = new int[capacity];
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public long writeBacks() {
+        return writeBacks;
+    }
+
+    //the page stays in its frame until every pin has been released with unpin
+    Page pin(int pageId) {
+        Integer frame = frameOf.get(pageId);
+        if (frame != null) {
+            hits++;
+            pins[frame]++;
+            policy.accessed(frame);
+            return frames[frame];
+        }
+
+        misses++;
+        int newFrame = claimFrame();
+        Page page = frames[newFrame];
+        page.load(pageId, file.page(pageId));
+        frameOf.put(pageId, newFrame);
+        pins[newFrame] = 1;
+        policy.accessed(newFrame);
+        return page;
+    }
+
+    //a pinned empty page in a newly allocated page of the file
+    Page pinNew() {
+        int frame = claimFrame();
+        Page page = frames[frame];
+        page.reset(file.allocate());
+        frameOf.put(page.id(), frame);
+        pins[frame] = 1;
+        policy.accessed(frame);
+        return page;
+    }
+
+    void unpin(Page page) {
+        pins[frameOf.get(page.id())]--;
+    }
+
+    //drops the pinned page without writing it back and returns it to the file
+    void free(Page page) {
+        int frame = frameOf.remove(page.id());
+        pins[frame] = 0;
+        freeFrames[freeFramesNumber++] = frame;
+        file.free(page.id());
+    }
+
+    //writes every dirty page back to the mapped file
+    void flush() {
+        for (int frame = 0; frame < used; frame++) {
+            Page page = frames[frame];
+            //a freed frame may still hold a stale copy of a page that lives in another frame now
+            Integer owner = frameOf.get(page.id());
+            if (page.isDirty() && owner != null && owner == frame) writeBack(page);
+        }
+    }
+
+    private int claimFrame() {
+        if (freeFramesNumber > 0) return freeFrames[--freeFramesNumber];
+        if (used < frames.length) {
+            frames[used] = new Page(order, search);
+            return used++;
+        }
+
+        int frame = policy.victim(used, candidate -> pins[candidate] == 0);
+        if (frame < 0) throw new IllegalStateException("Every frame of the buffer pool is pinned");
+        Page victim = frames[frame];
+        if (victim.isDirty()) writeBack(victim);
+        frameOf.remove(victim.id());
+        evictions++;
+        return frame;
+    }
+
+    private void writeBack(Page page) {
+        page.store(file.page(page.id()));
+        writeBacks++;
+    }
+}
@@ -0,0 +1,89 @@
+package com.training.btree;
+
+import java.util.Arrays;
+
+final class BulkLoader {
+
+    private BulkLoader() {
+    }
+
+    //returns the keys ascending and without duplicates, copying only when the input is not already so
+    static int[] sortedDistinct(int[] keys) {
+        boolean sorted = true;
+        for (int i = 1; i < keys.length && sorted; i++) {
+            sorted = keys[i - 1] < keys[i];
+        }
+        if (sorted) return keys;
+
+        int[] copy = Arrays.copyOf(keys, keys.length);
+        Arrays.sort(copy);
+        int count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            if (count == 0 || copy[i] != copy[count - 1]) copy[count++] = copy[i];
+        }
+        return Arrays.copyOf(copy, count);
+    }
+
+    //builds the tree for strictly ascending keys one level at a time, leaves first
+    static BTreeNode build(int order, SearchStrategy search, int[] keys, double fillFactor) {
+        return build(order, search, keys, fillFactor, 0);
+    }
+
+    static BTreeNode build(int order, SearchStrategy search, int[] keys, double fillFactor, int epoch) {
+        return build(order, order, search, keys, fillFactor, epoch);
+    }
+
+    //the leaves are made with the leaf order and every level above them with the inner order
+    static BTreeNode build(int innerOrder, int leafOrder, SearchStrategy search, int[] keys, double fillFactor, int epoch) {
+        if (fillFactor <= 0 || fillFactor > 1) throw new IllegalArgumentException("Fill factor must be in (0, 1]");
+        if (keys.length == 0) return null;
+
+        int order = leafOrder;
+        int[] levelKeys = keys;
+        int levelKeysNumber = keys.length;
+        BTreeNode[] levelChildren = null;
+        while (true) {
+            int perNode = Math.max(order - 1, Math.min(2 * order - 1, (int) Math.round(fillFactor * (2 * order - 1))));
+            int nodesNumber = nodesNumber(order, perNode, levelKeysNumber);
+            BTreeNode[] nodes = new BTreeNode[nodesNumber];
+            int[] separators = new int[nodesNumber - 1];
+            pack(order, search, levelKeys, levelKeysNumber, levelChildren, nodes, separators, epoch);
+
+            if (nodesNumber == 1) return nodes[0];
+            levelKeys = separators;
+            levelKeysNumber = separators.length;
+            levelChildren = nodes;
+            order = innerOrder;
+        }
+    }
+
+    //spreads the keys, and the children if there are any, over the nodes with the keys between them as separators;
+    //nodes already present are refilled, missing ones are created
+    static void pack(int order, SearchStrategy search, int[] keys, int keysNumber, BTreeNode[] children,
+                     BTreeNode[] nodes, int[] separators, int epoch) {
+        int nodesNumber = nodes.length;
+        int nodeKeys = keysNumber - (nodesNumber - 1);
+        int keyIndex = 0;
+        for (int n = 0; n < nodesNumber; n++) {
+            int count = nodeKeys / nodesNumber + (n < nodeKeys % nodesNumber ? 1 : 0);
+            if (nodes[n] == null) {
+                nodes[n] = new BTreeNode(order, search, false);
+                nodes[n].setEpoch(epoch);
+            }
+            //node n takes the children between its first and last key
+            nodes[n].assign(keys, keyIndex, count, children, keyIndex);
+            keyIndex += count;
+            if (n < nodesNumber - 1) separators[n] = keys[keyIndex++];
+        }
+    }
+
+    //number of nodes for keysNumber keys at perNode keys each, kept within the order's occupancy bounds
+    static int nodesNumber(int order, int perNode, int keysNumber) {
+        if (keysNumber <= 2 * order - 1) return 1;
+        //m nodes hold keysNumber - (m - 1) keys, which must average between order - 1 and 2 * order - 1
+        int fewest = (keysNumber + 2 * order) / (2 * order);
+        int most = (keysNumber + 1) / order;
+        int wanted = (keysNumber + perNode + 1) / (perNode + 1);
+        return Math.max(fewest, Math.min(most, wanted));
+    }
+}
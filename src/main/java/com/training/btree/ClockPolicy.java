@@ -0,0 +1,29 @@
+package com.training.btree;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+//second chance: the hand clears reference bits and evicts the first evictable frame whose bit is already clear
+final class ClockPolicy implements EvictionPolicy {
+    private boolean[] referenced = new boolean[16];
+    private int hand;
+
+    @Override
+    public void accessed(int frame) {
+        if (frame >= referenced.length) referenced = Arrays.copyOf(referenced, Math.max(frame + 1, 2 * referenced.length));
+        referenced[frame] = true;
+    }
+
+    @Override
+    public int victim(int frames, IntPredicate evictable) {
+        //two sweeps clear every bit, so a third finds nothing new
+        for (int step = 0; step < 2 * frames; step++) {
+            int frame = hand;
+            hand = (hand + 1) % frames;
+            if (!evictable.test(frame)) continue;
+            if (frame < referenced.length && referenced[frame]) referenced[frame] = false;
+            else return frame;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,68 @@
+package com.training.btree;
+
+//a read-only copy of a key set in full bit-packed leaves under one level of fence keys, for sets that stop changing
+public final class CompactBTree {
+    public static final int DEFAULT_LEAF_KEYS = 256;
+
+    private final PackedLeaf[] leaves;
+    //the first key of every leaf
+    private final int[] fences;
+    private final int size;
+
+    private CompactBTree(PackedLeaf[] leaves, int[] fences, int size) {
+        this.leaves = leaves;
+        this.fences = fences;
+        this.size = size;
+    }
+
+    public static CompactBTree of(BTree tree) {
+        return of(tree, DEFAULT_LEAF_KEYS);
+    }
+
+    public static CompactBTree of(BTree tree, int leafKeys) {
+        int[] keys = new int[tree.size()];
+        int[] count = new int[1];
+        tree.forEachKey(key -> keys[count[0]++] = key);
+        return build(keys, leafKeys);
+    }
+
+    //keys that are not sorted are sorted here, duplicates are dropped
+    public static CompactBTree build(int[] keys, int leafKeys) {
+        if (leafKeys < 1) throw new IllegalArgumentException("A leaf needs room for at least one key");
+        int[] sortedKeys = BulkLoader.sortedDistinct(keys);
+        int leavesNumber = (sortedKeys.length + leafKeys - 1) / leafKeys;
+        PackedLeaf[] leaves = new PackedLeaf[leavesNumber];
+        int[] fences = new int[leavesNumber];
+        for (int i = 0; i < leavesNumber; i++) {
+            int from = i * leafKeys;
+            leaves[i] = new PackedLeaf(sortedKeys, from, Math.min(leafKeys, sortedKeys.length - from));
+            fences[i] = sortedKeys[from];
+        }
+        return new CompactBTree(leaves, fences, sortedKeys.length);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int key) {
+        int index = SearchStrategy.BINARY.findIndex(fences, fences.length, key);
+        if (index < fences.length && fences[index] == key) return true;
+        if (index == 0) return false;
+        PackedLeaf leaf = leaves[index - 1];
+        int position = leaf.findIndex(key);
+        return position < leaf.size() && leaf.keyAt(position) == key;
+    }
+
+    PackedLeaf[] leaves() {
+        return leaves;
+    }
+
+    int[] fences() {
+        return fences;
+    }
+}
@@ -0,0 +1,497 @@
+package com.training.btree;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+public class ConcurrentBTree {
+    private static final int RESTART = -1;
+    private static final int FALSE = 0;
+    private static final int TRUE = 1;
+    //the leaf alone cannot take the change, the caller has to go down with write latches
+    private static final int STRUCTURAL = 2;
+
+    private final int order;
+    private final SearchStrategy search;
+    //serializes the writers that may replace the root
+    private final ReentrantLock rootLock = new ReentrantLock();
+    private final LongAdder size = new LongAdder();
+    private volatile Node root;
+
+    public ConcurrentBTree(int order) {
+        this(order, SearchStrategy.forOrder(order));
+    }
+
+    public ConcurrentBTree(int order, SearchStrategy search) {
+        if (order < 2) throw new IllegalArgumentException("Order must be at least 2");
+        this.order = order;
+        this.search = search;
+    }
+
+    public void insert(int... keys) {
+        for (int key : keys) {
+            insert(key);
+        }
+    }
+
+    public void delete(int... keys) {
+        for (int key : keys) {
+            delete(key);
+        }
+    }
+
+    public boolean contains(int key) {
+        for (int attempt = 0; ; attempt++) {
+            int result = tryContains(key);
+            if (result != RESTART) return result == TRUE;
+            backOff(attempt);
+        }
+    }
+
+    public int size() {
+        return size.intValue();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private boolean insert(int key) {
+        for (int attempt = 0; ; attempt++) {
+            int result = tryInsertIntoLeaf(key);
+            if (result == STRUCTURAL) return insertWithLatches(key);
+            if (result != RESTART) return result == TRUE;
+            backOff(attempt);
+        }
+    }
+
+    private boolean delete(int key) {
+        for (int attempt = 0; ; attempt++) {
+            int result = tryDeleteFromLeaf(key);
+            if (result == STRUCTURAL) return deleteWithLatches(key);
+            if (result != RESTART) return result == TRUE;
+            backOff(attempt);
+        }
+    }
+
+    //spin briefly, then let a preempted latch holder run
+    private static void backOff(int attempt) {
+        if (attempt < 64) Thread.onSpinWait();
+        else Thread.yield();
+    }
+
+    //readers validate every node version they relied on before trusting what they read and never take a latch
+    private int tryContains(int key) {
+        Node node = root;
+        if (node == null) return FALSE;
+        long version = node.latch.tryOptimisticRead();
+        if (version == 0 || root != node) return RESTART;
+
+        while (true) {
+            int keysNumber = node.keysNumber();
+            int index = node.findIndex(key, keysNumber);
+            boolean found = index < keysNumber && node.keys[index] == key;
+            Node child = found || node.isLeaf() ? null : node.children[index];
+            if (!node.latch.validate(version)) return RESTART;
+            if (found) return TRUE;
+            if (child == null) return node.isLeaf() ? FALSE : RESTART;
+
+            long childVersion = child.latch.tryOptimisticRead();
+            if (childVersion == 0 || !node.latch.validate(version)) return RESTART;
+            node = child;
+            version = childVersion;
+        }
+    }
+
+    //descends optimistically and upgrades only the leaf, as long as it neither splits nor underflows
+    private int tryInsertIntoLeaf(int key) {
+        Node node = root;
+        if (node == null) return STRUCTURAL;
+        long version = node.latch.tryOptimisticRead();
+        if (version == 0 || root != node) return RESTART;
+
+        while (true) {
+            int keysNumber = node.keysNumber();
+            int index = node.findIndex(key, keysNumber);
+            if (index < keysNumber && node.keys[index] == key) return node.latch.validate(version) ? FALSE : RESTART;
+
+            if (node.isLeaf()) {
+                if (keysNumber == 2 * order - 1) return STRUCTURAL;
+                long stamp = node.latch.tryConvertToWriteLock(version);
+                if (stamp == 0) return RESTART;
+                node.insertKeyAt(index, key);
+                node.latch.unlockWrite(stamp);
+                size.increment();
+                return TRUE;
+            }
+
+            Node child = node.children[index];
+            long childVersion = child == null ? 0 : child.latch.tryOptimisticRead();
+            if (childVersion == 0 || !node.latch.validate(version)) return RESTART;
+            node = child;
+            version = childVersion;
+        }
+    }
+
+    private int tryDeleteFromLeaf(int key) {
+        Node node = root;
+        if (node == null) return FALSE;
+        long version = node.latch.tryOptimisticRead();
+        if (version == 0 || root != node) return RESTART;
+
+        while (true) {
+            int keysNumber = node.keysNumber();
+            int index = node.findIndex(key, keysNumber);
+            boolean found = index < keysNumber && node.keys[index] == key;
+
+            if (node.isLeaf()) {
+                if (!found) return node.latch.validate(version) ? FALSE : RESTART;
+                if (keysNumber == order - 1 || node == root) return STRUCTURAL;
+                long stamp = node.latch.tryConvertToWriteLock(version);
+                if (stamp == 0) return RESTART;
+                node.deleteKeyAt(index);
+                node.latch.unlockWrite(stamp);
+                size.decrement();
+                return TRUE;
+            }
+            //internal keys are replaced by a predecessor or successor, which takes more than one node
+            if (found) return STRUCTURAL;
+
+            Node child = node.children[index];
+            long childVersion = child == null ? 0 : child.latch.tryOptimisticRead();
+            if (childVersion == 0 || !node.latch.validate(version)) return RESTART;
+            node = child;
+            version = childVersion;
+        }
+    }
+
+    //top-down lock coupling: a node is released as soon as its child has been made safe by a split
+    private boolean insertWithLatches(int key) {
+        rootLock.lock();
+        Node node = root;
+        if (node == null) {
+            node = new Node(order, true);
+            node.insertKeyAt(0, key);
+            root = node;
+            rootLock.unlock();
+            size.increment();
+            return true;
+        }
+        node.lock();
+        if (node.keysNumber == 2 * order - 1) {
+            Node newRoot = new Node(order, false);
+            newRoot.children[0] = node;
+            newRoot.lock();
+            splitChild(newRoot, 0);
+            root = newRoot;
+            node.unlock();
+            node = newRoot;
+        }
+        rootLock.unlock();
+
+        while (true) {
+            int index = node.findIndex(key, node.keysNumber);
+            if (index < node.keysNumber && node.keys[index] == key) {
+                node.unlock();
+                return false;
+            }
+            if (node.isLeaf()) {
+                node.insertKeyAt(index, key);
+                node.unlock();
+                size.increment();
+                return true;
+            }
+
+            Node child = node.children[index];
+            child.lock();
+            if (child.keysNumber == 2 * order - 1) {
+                splitChild(node, index);
+                if (key == node.keys[index]) {
+                    child.unlock();
+                    node.unlock();
+                    return false;
+                }
+                if (key > node.keys[index]) {
+                    child.unlock();
+                    child = node.children[index + 1];
+                    child.lock();
+                }
+            }
+            node.unlock();
+            node = child;
+        }
+    }
+
+    //top-down lock coupling: children are refilled before the descent enters them, so no change travels back up
+    private boolean deleteWithLatches(int key) {
+        rootLock.lock();
+        Node node = root;
+        if (node == null) {
+            rootLock.unlock();
+            return false;
+        }
+        node.lock();
+        boolean atRoot = true;
+
+        while (true) {
+            int index = node.findIndex(key, node.keysNumber);
+            boolean found = index < node.keysNumber && node.keys[index] == key;
+
+            if (node.isLeaf()) {
+                if (found) {
+                    node.deleteKeyAt(index);
+                    size.decrement();
+                }
+                //an emptied root leaf stays latched for good so that stale readers restart
+                if (atRoot && node.keysNumber == 0) root = null;
+                else node.unlock();
+                if (atRoot) rootLock.unlock();
+                return found;
+            }
+
+            Node child;
+            if (found) {
+                Node left = node.children[index];
+                left.lock();
+                if (left.keysNumber > order - 1) {
+                    node.keys[index] = deleteLast(left);
+                    release(node, atRoot);
+                    size.decrement();
+                    return true;
+                }
+                Node right = node.children[index + 1];
+                right.lock();
+                if (right.keysNumber > order - 1) {
+                    left.unlock();
+                    node.keys[index] = deleteFirst(right);
+                    release(node, atRoot);
+                    size.decrement();
+                    return true;
+                }
+                mergeChildren(node, index);
+                child = left;
+            } else {
+                child = fillChild(node, index);
+            }
+
+            if (atRoot && node.keysNumber == 0) root = child;
+            else node.unlock();
+            if (atRoot) {
+                rootLock.unlock();
+                atRoot = false;
+            }
+            node = child;
+        }
+    }
+
+    private void release(Node node, boolean atRoot) {
+        node.unlock();
+        if (atRoot) rootLock.unlock();
+    }
+
+    //deletes the largest key of the latched subtree and releases it
+    private int deleteLast(Node node) {
+        while (!node.isLeaf()) {
+            Node child = fillChild(node, node.keysNumber);
+            node.unlock();
+            node = child;
+        }
+        int last = node.keys[node.keysNumber - 1];
+        node.deleteKeyAt(node.keysNumber - 1);
+        node.unlock();
+        return last;
+    }
+
+    //deletes the smallest key of the latched subtree and releases it
+    private int deleteFirst(Node node) {
+        while (!node.isLeaf()) {
+            Node child = fillChild(node, 0);
+            node.unlock();
+            node = child;
+        }
+        int first = node.keys[0];
+        node.deleteKeyAt(0);
+        node.unlock();
+        return first;
+    }
+
+    //latches the child at index, makes sure it can lose a key and returns the latched node to descend into
+    private Node fillChild(Node node, int index) {
+        Node child = node.children[index];
+        child.lock();
+        if (child.keysNumber > order - 1) return child;
+
+        if (index < node.keysNumber) {
+            Node right = node.children[index + 1];
+            right.lock();
+            if (right.keysNumber > order - 1) {
+                borrowKeyFromRight(node, index);
+                right.unlock();
+                return child;
+            }
+            if (index == 0) {
+                mergeChildren(node, index);
+                return child;
+            }
+            right.unlock();
+        }
+
+        Node left = node.children[index - 1];
+        left.lock();
+        if (left.keysNumber > order - 1) {
+            borrowKeyFromLeft(node, index);
+            left.unlock();
+            return child;
+        }
+        if (index < node.keysNumber) {
+            left.unlock();
+            node.children[index + 1].lock();
+            mergeChildren(node, index);
+            return child;
+        }
+        mergeChildren(node, index - 1);
+        return left;
+    }
+
+    //all of these run with the parent and every child they touch write-latched
+
+    private void splitChild(Node parent, int index) {
+        Node child = parent.children[index];
+        Node right = new Node(order, child.isLeaf());
+        System.arraycopy(child.keys, order, right.keys, 0, order - 1);
+        if (!child.isLeaf()) System.arraycopy(child.children, order, right.children, 0, order);
+        right.keysNumber = order - 1;
+        child.keysNumber = order - 1;
+
+        int parentKeys = parent.keysNumber;
+        System.arraycopy(parent.keys, index, parent.keys, index + 1, parentKeys - index);
+        System.arraycopy(parent.children, index + 1, parent.children, index + 2, parentKeys - index);
+        parent.keys[index] = child.keys[order - 1];
+        parent.children[index + 1] = right;
+        parent.keysNumber = parentKeys + 1;
+    }
+
+    //the right child is merged into the left one and stays latched for good so that stale readers restart
+    private void mergeChildren(Node parent, int index) {
+        Node left = parent.children[index];
+        Node right = parent.children[index + 1];
+        int leftKeys = left.keysNumber;
+
+        left.keys[leftKeys] = parent.keys[index];
+        System.arraycopy(right.keys, 0, left.keys, leftKeys + 1, right.keysNumber);
+        if (!left.isLeaf())
+            System.arraycopy(right.children, 0, left.children, leftKeys + 1, right.keysNumber + 1);
+        left.keysNumber = leftKeys + 1 + right.keysNumber;
+
+        int parentKeys = parent.keysNumber;
+        System.arraycopy(parent.keys, index + 1, parent.keys, index, parentKeys - index - 1);
+        System.arraycopy(parent.children, index + 2, parent.children, index + 1, parentKeys - index - 1);
+        parent.children[parentKeys] = null;
+        parent.keysNumber = parentKeys - 1;
+    }
+
+    private void borrowKeyFromRight(Node parent, int index) {
+        Node target = parent.children[index];
+        Node right = parent.children[index + 1];
+
+        target.keys[target.keysNumber] = parent.keys[index];
+        if (!target.isLeaf()) target.children[target.keysNumber + 1] = right.children[0];
+        target.keysNumber++;
+
+        parent.keys[index] = right.keys[0];
+        System.arraycopy(right.keys, 1, right.keys, 0, right.keysNumber - 1);
+        if (!right.isLeaf()) System.arraycopy(right.children, 1, right.children, 0, right.keysNumber);
+        right.keysNumber--;
+    }
+
+    private void borrowKeyFromLeft(Node parent, int index) {
+        Node target = parent.children[index];
+        Node left = parent.children[index - 1];
+
+        System.arraycopy(target.keys, 0, target.keys, 1, target.keysNumber);
+        target.keys[0] = parent.keys[index - 1];
+        if (!target.isLeaf()) {
+            System.arraycopy(target.children, 0, target.children, 1, target.keysNumber + 1);
+            target.children[0] = left.children[left.keysNumber];
+        }
+        target.keysNumber++;
+
+        parent.keys[index - 1] = left.keys[left.keysNumber - 1];
+        left.keysNumber--;
+    }
+
+    //only meaningful while no writer is active
+    public boolean isBalanced() {
+        Node node = root;
+        if (node == null) return true;
+        if (node.keysNumber < 1) return false;
+        return height(node, Long.MIN_VALUE, Long.MAX_VALUE, true) >= 0;
+    }
+
+    private int height(Node node, long low, long high, boolean isRoot) {
+        int keysNumber = node.keysNumber;
+        if (keysNumber > 2 * order - 1 || (!isRoot && keysNumber < order - 1)) return -1;
+        for (int i = 0; i < keysNumber; i++) {
+            if (node.keys[i] <= low || node.keys[i] >= high) return -1;
+            if (i > 0 && node.keys[i] <= node.keys[i - 1]) return -1;
+        }
+        if (node.isLeaf()) return 0;
+
+        int height = -1;
+        for (int i = 0; i <= keysNumber; i++) {
+            long childLow = i == 0 ? low : node.keys[i - 1];
+            long childHigh = i == keysNumber ? high : node.keys[i];
+            int childHeight = node.children[i] == null ? -1 : height(node.children[i], childLow, childHigh, false);
+            if (childHeight < 0 || (height >= 0 && childHeight != height)) return -1;
+            height = childHeight;
+        }
+        return height + 1;
+    }
+
+    private final class Node {
+        private final StampedLock latch = new StampedLock();
+        private final int[] keys;
+        //null for leaves, a node never changes between leaf and internal
+        private final Node[] children;
+        private int keysNumber;
+        //stamp of the write latch, only touched by its holder
+        private long writeStamp;
+
+        private Node(int order, boolean leaf) {
+            this.keys = new int[2 * order - 1];
+            this.children = leaf ? null : new Node[2 * order];
+        }
+
+        private boolean isLeaf() {
+            return children == null;
+        }
+
+        //racy readers may see a count that does not match the keys yet, validation catches it afterwards
+        private int keysNumber() {
+            return Math.min(keysNumber, keys.length);
+        }
+
+        private int findIndex(int key, int keysNumber) {
+            return search.findIndex(keys, keysNumber, key);
+        }
+
+        private void lock() {
+            writeStamp = latch.writeLock();
+        }
+
+        private void unlock() {
+            latch.unlockWrite(writeStamp);
+        }
+
+        private void insertKeyAt(int index, int key) {
+            System.arraycopy(keys, index, keys, index + 1, keysNumber - index);
+            keys[index] = key;
+            keysNumber++;
+        }
+
+        private void deleteKeyAt(int index) {
+            System.arraycopy(keys, index + 1, keys, index, keysNumber - index - 1);
+            keysNumber--;
+        }
+    }
+}
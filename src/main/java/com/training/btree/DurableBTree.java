@@ -0,0 +1,225 @@
+package com.training.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+//a BTree whose mutations are logged ahead in a directory; reopening it loads the last checkpoint and replays the log
+public class DurableBTree implements Closeable {
+    public static final int DEFAULT_GROUP_SIZE = 512;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1 << 20;
+
+    private static final String LOG_FILE = "btree.wal";
+    private static final String CHECKPOINT_FILE = "btree.checkpoint";
+    private static final int CHECKPOINT_MAGIC = 0x42544350;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final int checkpointInterval;
+    private final WriteAheadLog log;
+    private final BTree tree;
+    //records logged since the last checkpoint
+    private int logged;
+    //told of each step of a checkpoint once it is done
+    private Consumer<String> checkpointSteps = step -> {
+    };
+
+    private DurableBTree(Path directory, int checkpointInterval, WriteAheadLog log, BTree tree) {
+        this.directory = directory;
+        this.checkpointInterval = checkpointInterval;
+        this.log = log;
+        this.tree = tree;
+    }
+
+    public static DurableBTree open(Path directory, int order) throws IOException {
+        return open(directory, order, FsyncPolicy.GROUP, DEFAULT_GROUP_SIZE, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    //recovers the tree from the checkpoint and the log found in the directory, if any
+    public static DurableBTree open(Path directory, int order, FsyncPolicy policy, int groupSize,
+                                    int checkpointInterval) throws IOException {
+        if (checkpointInterval < 1) throw new IllegalArgumentException("Checkpoint interval must be positive");
+        Files.createDirectories(directory);
+        BTree tree = BTree.bulkLoad(order, readCheckpoint(directory.resolve(CHECKPOINT_FILE)));
+        WriteAheadLog log = WriteAheadLog.open(directory.resolve(LOG_FILE), policy, groupSize);
+        try {
+            int replayed = log.replay(tree);
+            DurableBTree durableTree = new DurableBTree(directory, checkpointInterval, log, tree);
+            durableTree.logged = replayed;
+            return durableTree;
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    public void insert(int... keys) {
+        for (int key : keys) {
+            append(WriteAheadLog.INSERT, key);
+            tree.insert(key);
+        }
+        checkpointIfDue();
+    }
+
+    public void delete(int... keys) {
+        for (int key : keys) {
+            append(WriteAheadLog.DELETE, key);
+            tree.delete(key);
+        }
+        checkpointIfDue();
+    }
+
+    public boolean contains(int key) {
+        return tree.contains(key);
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    public boolean isEmpty() {
+        return tree.isEmpty();
+    }
+
+    public boolean isBalanced() {
+        return tree.isBalanced();
+    }
+
+    public TreeViolation validate() {
+        return tree.validate();
+    }
+
+    //the number of syncs of the log so far, group commit keeps it far below the number of mutations
+    public long syncs() {
+        return log.syncs();
+    }
+
+    //syncs the mutations not yet synced by the policy in one go
+    public void commit() throws IOException {
+        log.commit();
+    }
+
+    //writes the keys to a new checkpoint and empties the log
+    public void checkpoint() throws IOException {
+        log.commit();
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        writeCheckpoint(temporary, tree);
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointSteps.accept("move");
+        //the rename lives in the directory, which must reach the disk before the log is emptied or a crash could
+        //keep the empty log next to the previous checkpoint
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        checkpointSteps.accept("sync directory");
+        //a crash before the truncation replays the log over the new checkpoint, which yields the same keys
+        log.truncate();
+        checkpointSteps.accept("truncate");
+        logged = 0;
+    }
+
+    void onCheckpointStep(Consumer<String> checkpointSteps) {
+        this.checkpointSteps = checkpointSteps;
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private void append(byte operation, int key) {
+        try {
+            log.append(operation, key);
+            logged++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkpointIfDue() {
+        if (logged < checkpointInterval) return;
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //the magic, the key count, the ascending keys and a CRC32 of the keys
+    private static void writeCheckpoint(Path path, BTree tree) throws IOException {
+        int[] keys = new int[tree.size()];
+        int[] count = new int[1];
+        tree.forEachKey(key -> keys[count[0]++] = key);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            buffer.putInt(CHECKPOINT_MAGIC).putInt(keys.length);
+            writeFully(channel, buffer);
+
+            CRC32 crc = new CRC32();
+            for (int key : keys) {
+                if (!buffer.hasRemaining()) {
+                    crc.update(buffer.array(), 0, buffer.position());
+                    writeFully(channel, buffer);
+                }
+                buffer.putInt(key);
+            }
+            crc.update(buffer.array(), 0, buffer.position());
+            if (buffer.remaining() < Integer.BYTES) writeFully(channel, buffer);
+            buffer.putInt((int) crc.getValue());
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int[] readCheckpoint(Path path) throws IOException {
+        if (!Files.exists(path)) return new int[0];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(channel, header);
+            if (header.getInt(0) != CHECKPOINT_MAGIC) throw new IOException("Not a checkpoint: " + path);
+            int[] keys = new int[header.getInt(4)];
+
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            CRC32 crc = new CRC32();
+            int read = 0;
+            while (read < keys.length) {
+                buffer.clear().limit(Math.min(BUFFER_BYTES, (keys.length - read) * Integer.BYTES));
+                readFully(channel, buffer);
+                crc.update(buffer.array(), 0, buffer.limit());
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    keys[read++] = buffer.getInt();
+                }
+            }
+            ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES);
+            readFully(channel, checksum);
+            if (checksum.getInt(0) != (int) crc.getValue()) throw new IOException("Corrupt checkpoint: " + path);
+            return keys;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new IOException("Truncated checkpoint");
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.training.btree;
+
+import java.util.function.IntPredicate;
+
+//picks the buffer pool frame whose page makes room for another one; an instance serves a single pool
+public interface EvictionPolicy {
+    //the page in the frame was just pinned
+    void accessed(int frame);
+
+    //an evictable frame among frames [0, frames), or -1 if there is none
+    int victim(int frames, IntPredicate evictable);
+
+    static EvictionPolicy clock() {
+        return new ClockPolicy();
+    }
+
+    static EvictionPolicy lru() {
+        return new LruPolicy();
+    }
+}
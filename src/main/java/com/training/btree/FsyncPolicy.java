@@ -0,0 +1,10 @@
+package com.training.btree;
+
+public enum FsyncPolicy {
+    //every mutation is on disk before it returns
+    ALWAYS,
+    //mutations are synced a group at a time, when the group is full or on commit
+    GROUP,
+    //the log is written out on commit but syncing is left to the operating system
+    NEVER
+}
@@ -0,0 +1,52 @@
+package com.training.btree;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+//frames in a doubly linked list threaded through arrays, most recently used first
+final class LruPolicy implements EvictionPolicy {
+    private static final int NONE = -1;
+
+    private int[] previous = new int[0];
+    private int[] next = new int[0];
+    private int head = NONE;
+    private int tail = NONE;
+
+    @Override
+    public void accessed(int frame) {
+        if (frame >= next.length) grow(frame + 1);
+        else unlink(frame);
+
+        previous[frame] = NONE;
+        next[frame] = head;
+        if (head != NONE) previous[head] = frame;
+        head = frame;
+        if (tail == NONE) tail = frame;
+    }
+
+    @Override
+    public int victim(int frames, IntPredicate evictable) {
+        for (int frame = tail; frame != NONE; frame = previous[frame]) {
+            if (frame < frames && evictable.test(frame)) return frame;
+        }
+        return -1;
+    }
+
+    private void unlink(int frame) {
+        if (previous[frame] == NONE && head != frame) return;
+        if (previous[frame] != NONE) next[previous[frame]] = next[frame];
+        else head = next[frame];
+        if (next[frame] != NONE) previous[next[frame]] = previous[frame];
+        else tail = previous[frame];
+    }
+
+    //new frames start out of the list
+    private void grow(int frames) {
+        int length = next.length;
+        int capacity = Math.max(frames, 2 * length);
+        previous = Arrays.copyOf(previous, capacity);
+        next = Arrays.copyOf(next, capacity);
+        Arrays.fill(previous, length, capacity, NONE);
+        Arrays.fill(next, length, capacity, NONE);
+    }
+}
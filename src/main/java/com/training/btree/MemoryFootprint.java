@@ -0,0 +1,95 @@
+package com.training.btree;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+//estimated heap bytes of the tree layouts on a 64-bit JVM with compressed references
+public final class MemoryFootprint {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int ALIGNMENT = 8;
+    private static final long GIGABYTE = 1L << 30;
+
+    private MemoryFootprint() {
+    }
+
+    public static long of(BTree tree) {
+        return shallowSize(BTree.class) + (tree.root() == null ? 0 : of(tree.root()));
+    }
+
+    public static long of(CompactBTree tree) {
+        long bytes = shallowSize(CompactBTree.class)
+                + arraySize(tree.fences().length, Integer.BYTES)
+                + arraySize(tree.leaves().length, REFERENCE);
+        for (PackedLeaf leaf : tree.leaves()) {
+            bytes += shallowSize(PackedLeaf.class) + arraySize(leaf.words().length, Long.BYTES);
+        }
+        return bytes;
+    }
+
+    //compares the tree with the compact layout of the same keys
+    public static String report(BTree tree) {
+        CompactBTree compact = CompactBTree.of(tree);
+        long treeBytes = of(tree);
+        long compactBytes = of(compact);
+        long bits = 0;
+        for (PackedLeaf leaf : compact.leaves()) {
+            bits += (long) leaf.bitsPerKey() * leaf.size();
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("keys: %,d%n", tree.size()));
+        line(report, "BTree", treeBytes, tree.size());
+        line(report, "CompactBTree", compactBytes, tree.size());
+        report.append(String.format("packed bits per key: %.1f%n", tree.isEmpty() ? 0.0 : (double) bits / tree.size()));
+        report.append(String.format("compact is %.1fx smaller%n", (double) treeBytes / compactBytes));
+        return report.toString();
+    }
+
+    private static void line(StringBuilder report, String layout, long bytes, int keys) {
+        double perKey = keys == 0 ? 0 : (double) bytes / keys;
+        report.append(String.format("%s: %,d bytes, %.2f bytes per key, %,d keys per GB%n",
+                layout, bytes, perKey, perKey == 0 ? 0 : (long) (GIGABYTE / perKey)));
+    }
+
+    private static long of(BTreeNode node) {
+        int[] keys = node.keys();
+        long bytes = shallowSize(BTreeNode.class) + arraySize(keys.length, Integer.BYTES);
+        if (node.values() != null) bytes += arraySize(keys.length, Long.BYTES);
+        if (node.dead() != null) bytes += arraySize(keys.length, 1);
+        BTreeNode[] children = node.children();
+        if (children != null) {
+            bytes += arraySize(children.length, REFERENCE);
+            if (node.counts() != null) bytes += arraySize(node.counts().length, Integer.BYTES);
+            if (node.aggregates() != null) bytes += arraySize(node.aggregates().length, Long.BYTES);
+            for (int i = 0; i < node.getChildrenNumber(); i++) {
+                bytes += of(children[i]);
+            }
+        }
+        return bytes;
+    }
+
+    //the header and the instance fields, the fields of the class as declared rounded to the alignment
+    private static long shallowSize(Class<?> type) {
+        long bytes = OBJECT_HEADER;
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            Class<?> fieldType = field.getType();
+            if (!fieldType.isPrimitive()) bytes += REFERENCE;
+            else if (fieldType == long.class || fieldType == double.class) bytes += 8;
+            else if (fieldType == int.class || fieldType == float.class) bytes += 4;
+            else if (fieldType == short.class || fieldType == char.class) bytes += 2;
+            else bytes += 1;
+        }
+        return align(bytes);
+    }
+
+    private static long arraySize(int length, int elementBytes) {
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
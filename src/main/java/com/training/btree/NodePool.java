@@ -0,0 +1,44 @@
+package com.training.btree;
+
+//nodes freed by merges and root collapses, emptied and kept for the splits that follow; nodes that were inner keep
+//their children arrays and serve inner splits, the others serve leaf splits
+final class NodePool {
+    private final BTreeNode[] leaves;
+    private final BTreeNode[] inners;
+    private int leafCount;
+    private int innerCount;
+
+    NodePool(int capacity) {
+        this.leaves = new BTreeNode[capacity];
+        this.inners = new BTreeNode[capacity];
+    }
+
+    //false if the pool is full and the node is left to the collector
+    boolean release(BTreeNode node) {
+        boolean inner = node.hasChildrenArrays();
+        BTreeNode[] stack = inner ? inners : leaves;
+        int count = inner ? innerCount : leafCount;
+        if (count == stack.length) return false;
+        node.recycle();
+        stack[count] = node;
+        if (inner) innerCount++;
+        else leafCount++;
+        return true;
+    }
+
+    //an empty node of the order, or null; nodes of another order, left from before the tree changed its orders, are dropped
+    BTreeNode take(boolean inner, int order) {
+        BTreeNode[] stack = inner ? inners : leaves;
+        while (inner ? innerCount > 0 : leafCount > 0) {
+            int top = inner ? --innerCount : --leafCount;
+            BTreeNode node = stack[top];
+            stack[top] = null;
+            if (node.order() == order) return node;
+        }
+        return null;
+    }
+
+    int size() {
+        return leafCount + innerCount;
+    }
+}
@@ -0,0 +1,77 @@
+package com.training.btree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+//the cache and page sizes of the machine and the node orders they suggest; they are read from sysfs where there is
+//one and common sizes are assumed elsewhere
+final class NodeSizing {
+    private static final int DEFAULT_L1_BYTES = 32 << 10;
+    private static final int DEFAULT_L2_BYTES = 1 << 20;
+    private static final int PAGE_BYTES = 4096;
+    private static final int REFERENCE = 4;
+    private static final Path CACHES = Paths.get("/sys/devices/system/cpu/cpu0/cache");
+
+    private final int l1Bytes;
+    private final int l2Bytes;
+    private final int pageBytes;
+
+    NodeSizing(int l1Bytes, int l2Bytes, int pageBytes) {
+        this.l1Bytes = l1Bytes;
+        this.l2Bytes = l2Bytes;
+        this.pageBytes = pageBytes;
+    }
+
+    static NodeSizing detect() {
+        int l1Bytes = DEFAULT_L1_BYTES;
+        int l2Bytes = DEFAULT_L2_BYTES;
+        for (int index = 0; index < 8; index++) {
+            Path cache = CACHES.resolve("index" + index);
+            try {
+                String type = read(cache.resolve("type"));
+                if (type.equals("Instruction")) continue;
+                int level = Integer.parseInt(read(cache.resolve("level")));
+                int bytes = parseBytes(read(cache.resolve("size")));
+                if (level == 1) l1Bytes = bytes;
+                else if (level == 2) l2Bytes = bytes;
+            } catch (IOException | RuntimeException e) {
+                break;
+            }
+        }
+        return new NodeSizing(l1Bytes, l2Bytes, PAGE_BYTES);
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path)).trim();
+    }
+
+    //sizes such as 48K or 2048K
+    static int parseBytes(String size) {
+        char unit = size.charAt(size.length() - 1);
+        if (Character.isDigit(unit)) return Integer.parseInt(size);
+        int number = Integer.parseInt(size.substring(0, size.length() - 1));
+        switch (unit) {
+            case 'K': return number << 10;
+            case 'M': return number << 20;
+            default: throw new IllegalArgumentException("Unknown size " + size);
+        }
+    }
+
+    //every descent binary searches one inner node per level, so a node takes an eighth of L1, enough for the
+    //whole path of a tree of int keys to stay there
+    int innerOrder() {
+        int slots = l1Bytes / 8 / (Integer.BYTES + REFERENCE);
+        return Math.max(2, slots / 2);
+    }
+
+    //an insert shifts half a leaf on average while a scan streams whole leaves, so leaves grow with the share of
+    //reads from half a page up to a few pages, staying well within L2
+    int leafOrder(double readShare) {
+        int smallest = pageBytes / 2;
+        int largest = Math.max(pageBytes, Math.min(4 * pageBytes, l2Bytes / 16));
+        int bytes = (int) (smallest + readShare * (largest - smallest));
+        return Math.max(2, bytes / Integer.BYTES / 2);
+    }
+}
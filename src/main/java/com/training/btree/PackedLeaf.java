@@ -0,0 +1,67 @@
+package com.training.btree;
+
+//ascending keys stored frame-of-reference: the first key, then every key minus it in the fewest bits that fit the largest
+final class PackedLeaf {
+    private final int base;
+    private final int bits;
+    private final long mask;
+    private final long[] words;
+    private final int size;
+
+    PackedLeaf(int[] keys, int from, int count) {
+        this.base = keys[from];
+        this.size = count;
+        long largest = (long) keys[from + count - 1] - base;
+        this.bits = 64 - Long.numberOfLeadingZeros(largest);
+        this.mask = (1L << bits) - 1;
+        this.words = new long[(int) (((long) count * bits + 63) >>> 6)];
+        for (int i = 0; i < count && bits > 0; i++) {
+            long delta = (long) keys[from + i] - base;
+            long bit = (long) i * bits;
+            int word = (int) (bit >>> 6);
+            int shift = (int) (bit & 63);
+            words[word] |= delta << shift;
+            if (shift + bits > 64) words[word + 1] |= delta >>> (64 - shift);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int bitsPerKey() {
+        return bits;
+    }
+
+    long[] words() {
+        return words;
+    }
+
+    int keyAt(int index) {
+        return (int) (base + delta(index));
+    }
+
+    //index of the first key that is >= key, or size if there is none, searched without unpacking the leaf
+    int findIndex(int key) {
+        long delta = (long) key - base;
+        if (delta <= 0) return 0;
+        int low = 0;
+        int length = size;
+        while (length > 1) {
+            int half = length >>> 1;
+            low = delta(low + half) < delta ? low + half : low;
+            length -= half;
+        }
+        return delta(low) < delta ? low + 1 : low;
+    }
+
+    private long delta(int index) {
+        if (bits == 0) return 0;
+        long bit = (long) index * bits;
+        int word = (int) (bit >>> 6);
+        int shift = (int) (bit & 63);
+        long value = words[word] >>> shift;
+        if (shift + bits > 64) value |= words[word + 1] << (64 - shift);
+        return value & mask;
+    }
+}
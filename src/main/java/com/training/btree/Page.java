@@ -0,0 +1,148 @@
+package com.training.btree;
+
+import java.nio.ByteBuffer;
+
+//a node of a PagedBTree decoded from its page: key count, child count, keys, then child page ids
+final class Page {
+    private static final int HEADER_BYTES = 8;
+
+    private int id;
+    private final int[] keys;
+    private final int[] children;
+    private final SearchStrategy search;
+    private int keysNumber;
+    private int childrenNumber;
+    //changed since it was loaded or stored
+    private boolean dirty;
+
+    Page(int order, SearchStrategy search) {
+        this.keys = new int[2 * order - 1];
+        this.children = new int[2 * order];
+        this.search = search;
+    }
+
+    //the largest order whose 2t - 1 keys and 2t child ids fit in a page
+    static int orderFor(int pageSize) {
+        return (pageSize - HEADER_BYTES + Integer.BYTES) / (4 * Integer.BYTES);
+    }
+
+    //turns this into the empty page id
+    void reset(int id) {
+        this.id = id;
+        keysNumber = 0;
+        childrenNumber = 0;
+        dirty = true;
+    }
+
+    void load(int id, ByteBuffer page) {
+        this.id = id;
+        dirty = false;
+        keysNumber = page.getInt(0);
+        childrenNumber = page.getInt(4);
+        int offset = HEADER_BYTES;
+        for (int i = 0; i < keysNumber; i++, offset += Integer.BYTES)
+            keys[i] = page.getInt(offset);
+        offset = HEADER_BYTES + keys.length * Integer.BYTES;
+        for (int i = 0; i < childrenNumber; i++, offset += Integer.BYTES)
+            children[i] = page.getInt(offset);
+    }
+
+    void store(ByteBuffer page) {
+        page.putInt(0, keysNumber);
+        page.putInt(4, childrenNumber);
+        int offset = HEADER_BYTES;
+        for (int i = 0; i < keysNumber; i++, offset += Integer.BYTES)
+            page.putInt(offset, keys[i]);
+        offset = HEADER_BYTES + keys.length * Integer.BYTES;
+        for (int i = 0; i < childrenNumber; i++, offset += Integer.BYTES)
+            page.putInt(offset, children[i]);
+        dirty = false;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    int id() {
+        return id;
+    }
+
+    int keyAt(int index) {
+        return keys[index];
+    }
+
+    int childAt(int index) {
+        return children[index];
+    }
+
+    int getKeysNumber() {
+        return keysNumber;
+    }
+
+    int getChildrenNumber() {
+        return childrenNumber;
+    }
+
+    boolean isLeaf() {
+        return childrenNumber == 0;
+    }
+
+    int findIndex(int key) {
+        return search.findIndex(keys, keysNumber, key);
+    }
+
+    void addKeyAt(int index, int key) {
+        dirty = true;
+        System.arraycopy(keys, index, keys, index + 1, keysNumber - index);
+        keys[index] = key;
+        keysNumber++;
+    }
+
+    void setKeyAt(int index, int key) {
+        dirty = true;
+        keys[index] = key;
+    }
+
+    void deleteKeyAt(int index) {
+        dirty = true;
+        System.arraycopy(keys, index + 1, keys, index, keysNumber - index - 1);
+        keysNumber--;
+    }
+
+    void insertChildAt(int index, int child) {
+        dirty = true;
+        System.arraycopy(children, index, children, index + 1, childrenNumber - index);
+        children[index] = child;
+        childrenNumber++;
+    }
+
+    void deleteChildAt(int index) {
+        dirty = true;
+        System.arraycopy(children, index + 1, children, index, childrenNumber - index - 1);
+        childrenNumber--;
+    }
+
+    //moves the keys from index on, and the children after them, to the empty page right
+    void splitFrom(int index, Page right) {
+        dirty = true;
+        right.dirty = true;
+        int moved = keysNumber - index;
+        System.arraycopy(keys, index, right.keys, 0, moved);
+        right.keysNumber = moved;
+        keysNumber = index;
+        if (!isLeaf()) {
+            System.arraycopy(children, index, right.children, 0, childrenNumber - index);
+            right.childrenNumber = childrenNumber - index;
+            childrenNumber = index;
+        }
+    }
+
+    //appends the keys and children of right
+    void append(Page right) {
+        dirty = true;
+        System.arraycopy(right.keys, 0, keys, keysNumber, right.keysNumber);
+        keysNumber += right.keysNumber;
+        System.arraycopy(right.children, 0, children, childrenNumber, right.childrenNumber);
+        childrenNumber += right.childrenNumber;
+    }
+}
@@ -0,0 +1,144 @@
+package com.training.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//fixed-size pages of a memory-mapped file; page 0 is the header, so page id 0 doubles as "no page"
+final class PageFile implements Closeable {
+    static final int NO_PAGE = 0;
+    static final int MIN_PAGE_SIZE = 64;
+    static final int MAX_PAGE_SIZE = 1 << 20;
+
+    private static final int MAGIC = 0x42545245;
+    //the file is mapped in segments of this many pages so it can grow without remapping what is already mapped
+    private static final int PAGES_PER_SEGMENT = 1024;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int PAGE_SIZE_OFFSET = 4;
+    private static final int ROOT_OFFSET = 8;
+    private static final int PAGE_COUNT_OFFSET = 12;
+    private static final int FREE_LIST_OFFSET = 16;
+    private static final int SIZE_OFFSET = 20;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final ByteBuffer header;
+
+    private PageFile(FileChannel channel, int pageSize) {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.header = segment(0);
+    }
+
+    //opens the file if it holds pages already, the page size argument only applies to a new file
+    static PageFile open(Path path, int pageSize) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() >= 8) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                channel.read(header, 0);
+                if (header.getInt(MAGIC_OFFSET) != MAGIC) throw new IOException("Not a page file: " + path);
+                return new PageFile(channel, header.getInt(PAGE_SIZE_OFFSET));
+            }
+
+            if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE)
+                throw new IllegalArgumentException("Page size must be in [" + MIN_PAGE_SIZE + ", " + MAX_PAGE_SIZE + "]");
+            PageFile file = new PageFile(channel, pageSize);
+            file.header.putInt(PAGE_SIZE_OFFSET, pageSize);
+            file.header.putInt(ROOT_OFFSET, NO_PAGE);
+            file.header.putInt(PAGE_COUNT_OFFSET, 1);
+            file.header.putInt(FREE_LIST_OFFSET, NO_PAGE);
+            file.header.putInt(SIZE_OFFSET, 0);
+            file.header.putInt(MAGIC_OFFSET, MAGIC);
+            return file;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int pageSize() {
+        return pageSize;
+    }
+
+    int pageCount() {
+        return header.getInt(PAGE_COUNT_OFFSET);
+    }
+
+    int rootPage() {
+        return header.getInt(ROOT_OFFSET);
+    }
+
+    void setRootPage(int pageId) {
+        header.putInt(ROOT_OFFSET, pageId);
+    }
+
+    int size() {
+        return header.getInt(SIZE_OFFSET);
+    }
+
+    void setSize(int size) {
+        header.putInt(SIZE_OFFSET, size);
+    }
+
+    //a view of the page that reads and writes the mapped file directly
+    ByteBuffer page(int pageId) {
+        ByteBuffer segment = segment(pageId / PAGES_PER_SEGMENT).duplicate();
+        int offset = (pageId % PAGES_PER_SEGMENT) * pageSize;
+        segment.position(offset).limit(offset + pageSize);
+        return segment.slice();
+    }
+
+    //reuses a freed page before growing the file
+    int allocate() {
+        int pageId = header.getInt(FREE_LIST_OFFSET);
+        if (pageId != NO_PAGE) {
+            header.putInt(FREE_LIST_OFFSET, page(pageId).getInt(0));
+            return pageId;
+        }
+        pageId = pageCount();
+        header.putInt(PAGE_COUNT_OFFSET, pageId + 1);
+        return pageId;
+    }
+
+    //a free page holds the id of the next free page in its first int
+    void free(int pageId) {
+        page(pageId).putInt(0, header.getInt(FREE_LIST_OFFSET));
+        header.putInt(FREE_LIST_OFFSET, pageId);
+    }
+
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private MappedByteBuffer segment(int index) {
+        while (segments.size() <= index) {
+            long position = (long) segments.size() * PAGES_PER_SEGMENT * pageSize;
+            try {
+                //mapping past the end of the file grows it
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long) PAGES_PER_SEGMENT * pageSize));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return segments.get(index);
+    }
+}
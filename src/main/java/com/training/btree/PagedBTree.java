@@ -0,0 +1,335 @@
+package com.training.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+//a BTree whose nodes live in the pages of a memory-mapped file; only the pages in the buffer pool are decoded on the heap
+public class PagedBTree implements Closeable {
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int DEFAULT_FRAMES = 1024;
+
+    private final PageFile file;
+    private final BufferPool pool;
+    private final int order;
+    private final SearchStrategy search;
+
+    private PagedBTree(PageFile file, int frames, EvictionPolicy policy) {
+        this.file = file;
+        this.order = Page.orderFor(file.pageSize());
+        this.search = SearchStrategy.forOrder(order);
+        this.pool = new BufferPool(file, order, search, frames, policy);
+    }
+
+    public static PagedBTree open(Path path) throws IOException {
+        return open(path, DEFAULT_PAGE_SIZE);
+    }
+
+    public static PagedBTree open(Path path, int pageSize) throws IOException {
+        return open(path, pageSize, DEFAULT_FRAMES, EvictionPolicy.clock());
+    }
+
+    //an existing file is used as it is, with the page size it was created with
+    public static PagedBTree open(Path path, int pageSize, int frames, EvictionPolicy policy) throws IOException {
+        PageFile file = PageFile.open(path, pageSize);
+        try {
+            return new PagedBTree(file, frames, policy);
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int order() {
+        return order;
+    }
+
+    public int pageSize() {
+        return file.pageSize();
+    }
+
+    public BufferPool bufferPool() {
+        return pool;
+    }
+
+    public void insert(int... keys) {
+        for (int key : keys) {
+            insert(key);
+        }
+    }
+
+    public void delete(int... keys) {
+        for (int key : keys) {
+            delete(key);
+        }
+    }
+
+    public int size() {
+        return file.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean contains(int key) {
+        int pageId = file.rootPage();
+        while (pageId != PageFile.NO_PAGE) {
+            Page page = pool.pin(pageId);
+            int index = page.findIndex(key);
+            boolean found = index < page.getKeysNumber() && key == page.keyAt(index);
+            pageId = found || page.isLeaf() ? PageFile.NO_PAGE : page.childAt(index);
+            pool.unpin(page);
+            if (found) return true;
+        }
+        return false;
+    }
+
+    //writes the dirty pages of the buffer pool back and the mapped pages to the file
+    public void flush() {
+        pool.flush();
+        file.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.flush();
+        file.close();
+    }
+
+    private boolean insert(int key) {
+        if (file.rootPage() == PageFile.NO_PAGE) {
+            Page root = pool.pinNew();
+            root.addKeyAt(0, key);
+            file.setRootPage(root.id());
+            file.setSize(1);
+            pool.unpin(root);
+            return true;
+        }
+
+        Page root = pool.pin(file.rootPage());
+        if (root.getKeysNumber() == 2 * order - 1) {
+            Page newRoot = pool.pinNew();
+            newRoot.insertChildAt(0, root.id());
+            pool.unpin(splitChild(newRoot, 0, root));
+            pool.unpin(root);
+            file.setRootPage(newRoot.id());
+            root = newRoot;
+        }
+        if (!insertNonFull(root, key)) return false;
+        file.setSize(size() + 1);
+        return true;
+    }
+
+    //node is pinned by the caller and unpinned here, the descent holds at most a parent and two children
+    private boolean insertNonFull(Page node, int key) {
+        while (true) {
+            int index = node.findIndex(key);
+            if (index < node.getKeysNumber() && key == node.keyAt(index)) {
+                pool.unpin(node);
+                return false;
+            }
+            if (node.isLeaf()) {
+                node.addKeyAt(index, key);
+                pool.unpin(node);
+                return true;
+            }
+
+            Page child = pool.pin(node.childAt(index));
+            if (child.getKeysNumber() == 2 * order - 1) {
+                Page right = splitChild(node, index, child);
+                if (key == node.keyAt(index)) {
+                    pool.unpin(right);
+                    pool.unpin(child);
+                    pool.unpin(node);
+                    return false;
+                }
+                if (key > node.keyAt(index)) {
+                    pool.unpin(child);
+                    child = right;
+                } else {
+                    pool.unpin(right);
+                }
+            }
+            pool.unpin(node);
+            node = child;
+        }
+    }
+
+    private boolean delete(int key) {
+        int rootId = file.rootPage();
+        if (rootId == PageFile.NO_PAGE) return false;
+        boolean deleted = delete(pool.pin(rootId), key);
+        //the descent may have merged the last two children of the root even if the key was absent
+        Page root = pool.pin(rootId);
+        if (root.getKeysNumber() == 0) {
+            file.setRootPage(root.isLeaf() ? PageFile.NO_PAGE : root.childAt(0));
+            pool.free(root);
+        } else {
+            pool.unpin(root);
+        }
+        if (deleted) file.setSize(size() - 1);
+        return deleted;
+    }
+
+    //node is pinned by the caller and unpinned here before the descent goes on
+    private boolean delete(Page node, int key) {
+        int index = node.findIndex(key);
+        boolean found = index < node.getKeysNumber() && key == node.keyAt(index);
+        if (node.isLeaf()) {
+            if (found) node.deleteKeyAt(index);
+            pool.unpin(node);
+            return found;
+        }
+
+        if (found) {
+            Page left = pool.pin(node.childAt(index));
+            if (left.getKeysNumber() > order - 1) {
+                inOrderPredecessor(node, index, left);
+                return true;
+            }
+            Page right = pool.pin(node.childAt(index + 1));
+            if (right.getKeysNumber() > order - 1) {
+                pool.unpin(left);
+                inOrderSuccessor(node, index, right);
+                return true;
+            }
+            //both neighbours are minimal: pull the key down into their merge
+            mergeChildren(node, index, left, right);
+            pool.unpin(node);
+            return delete(left, key);
+        }
+
+        Page child = pool.pin(node.childAt(index));
+        if (child.getKeysNumber() == order - 1) {
+            Page right = index < node.getKeysNumber() ? pool.pin(node.childAt(index + 1)) : null;
+            Page left = index > 0 ? pool.pin(node.childAt(index - 1)) : null;
+            if (right != null && right.getKeysNumber() > order - 1) {
+                borrowKeyFromRight(node, index, child, right);
+            } else if (left != null && left.getKeysNumber() > order - 1) {
+                borrowKeyFromLeft(node, index, child, left);
+            } else if (right != null) {
+                mergeChildren(node, index, child, right);
+                right = null;
+            } else {
+                mergeChildren(node, index - 1, left, child);
+                child = left;
+                left = null;
+            }
+            if (right != null) pool.unpin(right);
+            if (left != null) pool.unpin(left);
+        }
+        pool.unpin(node);
+        return delete(child, key);
+    }
+
+    //replaces the key at index by the largest key of the left subtree, deleted down there
+    private void inOrderPredecessor(Page node, int index, Page left) {
+        Page leaf = left;
+        while (!leaf.isLeaf()) {
+            Page child = pool.pin(leaf.childAt(leaf.getKeysNumber()));
+            if (leaf != left) pool.unpin(leaf);
+            leaf = child;
+        }
+        int predecessor = leaf.keyAt(leaf.getKeysNumber() - 1);
+        if (leaf != left) pool.unpin(leaf);
+        delete(left, predecessor);
+        node.setKeyAt(index, predecessor);
+        pool.unpin(node);
+    }
+
+    private void inOrderSuccessor(Page node, int index, Page right) {
+        Page leaf = right;
+        while (!leaf.isLeaf()) {
+            Page child = pool.pin(leaf.childAt(0));
+            if (leaf != right) pool.unpin(leaf);
+            leaf = child;
+        }
+        int successor = leaf.keyAt(0);
+        if (leaf != right) pool.unpin(leaf);
+        delete(right, successor);
+        node.setKeyAt(index, successor);
+        pool.unpin(node);
+    }
+
+    //moves the separator at index and the right child into the left child and frees the right page
+    private void mergeChildren(Page node, int index, Page left, Page right) {
+        left.addKeyAt(left.getKeysNumber(), node.keyAt(index));
+        left.append(right);
+        node.deleteKeyAt(index);
+        node.deleteChildAt(index + 1);
+        pool.free(right);
+    }
+
+    private void borrowKeyFromRight(Page node, int index, Page target, Page right) {
+        target.addKeyAt(target.getKeysNumber(), node.keyAt(index));
+        node.setKeyAt(index, right.keyAt(0));
+        right.deleteKeyAt(0);
+        if (!right.isLeaf()) {
+            target.insertChildAt(target.getChildrenNumber(), right.childAt(0));
+            right.deleteChildAt(0);
+        }
+    }
+
+    private void borrowKeyFromLeft(Page node, int index, Page target, Page left) {
+        target.addKeyAt(0, node.keyAt(index - 1));
+        node.setKeyAt(index - 1, left.keyAt(left.getKeysNumber() - 1));
+        left.deleteKeyAt(left.getKeysNumber() - 1);
+        if (!left.isLeaf()) {
+            target.insertChildAt(0, left.childAt(left.getChildrenNumber() - 1));
+            left.deleteChildAt(left.getChildrenNumber() - 1);
+        }
+    }
+
+    //splits the full child at index around its median, which moves up into the parent; returns the pinned new right page
+    private Page splitChild(Page parent, int index, Page child) {
+        Page right = pool.pinNew();
+        int median = child.keyAt(order - 1);
+        child.splitFrom(order, right);
+        child.deleteKeyAt(order - 1);
+        parent.addKeyAt(index, median);
+        parent.insertChildAt(index + 1, right.id());
+        return right;
+    }
+
+    public boolean isBalanced() {
+        int rootId = file.rootPage();
+        if (rootId == PageFile.NO_PAGE) return size() == 0;
+        int[] count = new int[1];
+        return height(rootId, Long.MIN_VALUE, Long.MAX_VALUE, true, count) >= 0 && count[0] == size();
+    }
+
+    //the height of a valid subtree with keys in (low, high), or -1
+    private int height(int pageId, long low, long high, boolean isRoot, int[] count) {
+        //copied out so that the recursion does not keep a whole path pinned
+        Page node = pool.pin(pageId);
+        int keysNumber = node.getKeysNumber();
+        int childrenNumber = node.getChildrenNumber();
+        int[] keys = new int[keysNumber];
+        int[] children = new int[childrenNumber];
+        for (int i = 0; i < keysNumber; i++)
+            keys[i] = node.keyAt(i);
+        for (int i = 0; i < childrenNumber; i++)
+            children[i] = node.childAt(i);
+        pool.unpin(node);
+
+        if (keysNumber > 2 * order - 1 || keysNumber < (isRoot ? 1 : order - 1)) return -1;
+        for (int i = 0; i < keysNumber; i++) {
+            if (keys[i] <= low || keys[i] >= high) return -1;
+            if (i > 0 && keys[i] <= keys[i - 1]) return -1;
+        }
+        count[0] += keysNumber;
+        if (childrenNumber == 0) return 0;
+        if (childrenNumber != keysNumber + 1) return -1;
+
+        int height = -1;
+        for (int i = 0; i <= keysNumber; i++) {
+            long childLow = i == 0 ? low : keys[i - 1];
+            long childHigh = i == keysNumber ? high : keys[i];
+            int childHeight = height(children[i], childLow, childHigh, false, count);
+            if (childHeight < 0 || (height >= 0 && childHeight != height)) return -1;
+            height = childHeight;
+        }
+        return height + 1;
+    }
+}
@@ -0,0 +1,52 @@
+package com.training.btree;
+
+public enum SearchStrategy {
+    LINEAR {
+        @Override
+        int findIndex(int[] keys, int size, int key) {
+            int index = 0;
+            while (index < size && keys[index] < key) index++;
+            return index;
+        }
+    },
+    BINARY {
+        @Override
+        int findIndex(int[] keys, int size, int key) {
+            if (size == 0) return 0;
+            int base = 0;
+            int length = size;
+            //the conditional move keeps the loop free of unpredictable branches
+            while (length > 1) {
+                int half = length >>> 1;
+                base = keys[base + half] < key ? base + half : base;
+                length -= half;
+            }
+            return keys[base] < key ? base + 1 : base;
+        }
+    },
+    HYBRID {
+        @Override
+        int findIndex(int[] keys, int size, int key) {
+            int base = 0;
+            int length = size;
+            while (length > CACHE_LINE_KEYS) {
+                int half = length >>> 1;
+                base = keys[base + half] < key ? base + half : base;
+                length -= half;
+            }
+            int end = base + length;
+            while (base < end && keys[base] < key) base++;
+            return base;
+        }
+    };
+
+    //number of int keys that fit in a 64 byte cache line
+    static final int CACHE_LINE_KEYS = 16;
+
+    //index of the first of the size leading keys that is >= key, or size if there is none
+    abstract int findIndex(int[] keys, int size, int key);
+
+    public static SearchStrategy forOrder(int order) {
+        return 2 * order - 1 <= 2 * CACHE_LINE_KEYS ? LINEAR : HYBRID;
+    }
+}
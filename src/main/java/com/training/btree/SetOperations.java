@@ -0,0 +1,174 @@
+package com.training.btree;
+
+import java.util.Arrays;
+
+//merges the live keys of two trees in order into a sorted array for the bulk loader; a cursor seeks past whole
+//subtrees, so intersecting or subtracting ranges that barely overlap reads little more than the overlap
+final class SetOperations {
+
+    private SetOperations() {
+    }
+
+    static int[] keys(BTree tree) {
+        int[] keys = new int[tree.size()];
+        new Cursor(tree.root()).drainTo(keys, 0);
+        return keys;
+    }
+
+    static int[] union(BTree first, BTree second) {
+        Cursor left = new Cursor(first.root());
+        Cursor right = new Cursor(second.root());
+        int[] keys = new int[first.size() + second.size()];
+        int count = 0;
+        while (left.hasKey() && right.hasKey()) {
+            int leftKey = left.key();
+            int rightKey = right.key();
+            if (leftKey <= rightKey) {
+                keys[count++] = leftKey;
+                left.advance();
+                if (leftKey == rightKey) right.advance();
+            } else {
+                keys[count++] = rightKey;
+                right.advance();
+            }
+        }
+        count = left.drainTo(keys, count);
+        count = right.drainTo(keys, count);
+        return Arrays.copyOf(keys, count);
+    }
+
+    static int[] intersection(BTree first, BTree second) {
+        Cursor left = new Cursor(first.root());
+        Cursor right = new Cursor(second.root());
+        int[] keys = new int[Math.min(first.size(), second.size())];
+        int count = 0;
+        while (left.hasKey() && right.hasKey()) {
+            int leftKey = left.key();
+            int rightKey = right.key();
+            if (leftKey < rightKey) {
+                left.seek(rightKey);
+            } else if (rightKey < leftKey) {
+                right.seek(leftKey);
+            } else {
+                keys[count++] = leftKey;
+                left.advance();
+                right.advance();
+            }
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    static int[] difference(BTree first, BTree second) {
+        Cursor left = new Cursor(first.root());
+        Cursor right = new Cursor(second.root());
+        int[] keys = new int[first.size()];
+        int count = 0;
+        while (left.hasKey() && right.hasKey()) {
+            int leftKey = left.key();
+            right.seek(leftKey);
+            if (!right.hasKey() || right.key() != leftKey) keys[count++] = leftKey;
+            left.advance();
+        }
+        count = left.drainTo(keys, count);
+        return Arrays.copyOf(keys, count);
+    }
+
+    //the live keys of a tree in order; every node on the stack but the top is entered at the child of its index,
+    //which is also the index of the key that follows that child, and the top stands on the key of its index
+    static final class Cursor {
+        private BTreeNode[] nodes = new BTreeNode[8];
+        private int[] indexes = new int[8];
+        private int depth;
+
+        Cursor(BTreeNode root) {
+            if (root == null) return;
+            push(root, 0);
+            descendFirst();
+            settle();
+        }
+
+        boolean hasKey() {
+            return depth > 0;
+        }
+
+        int key() {
+            return nodes[depth - 1].keys()[indexes[depth - 1]];
+        }
+
+        void advance() {
+            step();
+            settle();
+        }
+
+        //moves to the first key not below the given one, never backwards
+        void seek(int key) {
+            if (depth == 0 || key() >= key) return;
+            //leaves the subtrees bounded above by a key not past the sought one
+            while (depth > 1) {
+                BTreeNode parent = nodes[depth - 2];
+                int index = indexes[depth - 2];
+                if (index < parent.getKeysNumber() && parent.keys()[index] > key) break;
+                depth--;
+            }
+            BTreeNode node = nodes[depth - 1];
+            while (true) {
+                int index = node.findIndex(key);
+                indexes[depth - 1] = index;
+                if (node.isLeaf() || index < node.getKeysNumber() && node.keys()[index] == key) break;
+                node = node.children()[index];
+                push(node, 0);
+            }
+            skipExhausted();
+            settle();
+        }
+
+        int drainTo(int[] keys, int count) {
+            while (depth > 0) {
+                keys[count++] = key();
+                advance();
+            }
+            return count;
+        }
+
+        private void step() {
+            BTreeNode top = nodes[depth - 1];
+            indexes[depth - 1]++;
+            if (top.isLeaf()) {
+                skipExhausted();
+            } else {
+                push(top.children()[indexes[depth - 1]], 0);
+                descendFirst();
+            }
+        }
+
+        //skips tombstones
+        private void settle() {
+            while (depth > 0 && nodes[depth - 1].isDead(indexes[depth - 1]))
+                step();
+        }
+
+        private void skipExhausted() {
+            while (depth > 0 && indexes[depth - 1] == nodes[depth - 1].getKeysNumber())
+                depth--;
+        }
+
+        private void descendFirst() {
+            BTreeNode node = nodes[depth - 1];
+            while (!node.isLeaf()) {
+                node = node.children()[0];
+                push(node, 0);
+            }
+            skipExhausted();
+        }
+
+        private void push(BTreeNode node, int index) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * depth);
+                indexes = Arrays.copyOf(indexes, 2 * depth);
+            }
+            nodes[depth] = node;
+            indexes[depth] = index;
+            depth++;
+        }
+    }
+}
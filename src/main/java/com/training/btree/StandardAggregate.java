@@ -0,0 +1,43 @@
+package com.training.btree;
+
+enum StandardAggregate implements Aggregate {
+    SUM {
+        @Override
+        public long identity() {
+            return 0;
+        }
+
+        @Override
+        public long combine(long left, long right) {
+            return left + right;
+        }
+    },
+    //the identities lie outside the int range, so an empty range is told apart from a real key
+    MIN {
+        @Override
+        public long identity() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public long combine(long left, long right) {
+            return Math.min(left, right);
+        }
+    },
+    MAX {
+        @Override
+        public long identity() {
+            return Long.MIN_VALUE;
+        }
+
+        @Override
+        public long combine(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    @Override
+    public long of(int key) {
+        return key;
+    }
+}
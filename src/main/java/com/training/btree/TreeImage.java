@@ -0,0 +1,310 @@
+package com.training.btree;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+//the nodes of a tree as they are, little-endian: a header, every node in pre-order as its key count, keys, values if
+//the tree has them and a tombstone bitmap if it has tombstones, then a CRC32 of all that precedes it; loading puts
+//each node in place as read, without comparing a key
+final class TreeImage {
+    private static final int MAGIC = 0x42545249;
+    //version 1 had no leaf order, its leaves have the inner order
+    private static final int VERSION = 2;
+    //magic, version, flags, order, search, size, tombstones, height, the compaction threshold and the leaf order
+    private static final int HEADER_BYTES = 9 * Integer.BYTES + Double.BYTES;
+    private static final int VERSION_1_HEADER_BYTES = 8 * Integer.BYTES + Double.BYTES;
+    private static final int VALUES = 1;
+    private static final int TOMBSTONES = 2;
+    private static final int LAZY_DELETES = 4;
+    private static final int RAGGED = 8;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int MAP_BYTES = 64 << 20;
+
+    private TreeImage() {
+    }
+
+    static void write(BTree tree, WritableByteChannel channel) throws IOException {
+        int flags = (tree.hasValues() ? VALUES : 0) | (tree.tombstones() > 0 ? TOMBSTONES : 0)
+                | (tree.isLazyDeletes() ? LAZY_DELETES : 0) | (tree.isRagged() ? RAGGED : 0);
+        int largestOrder = Math.max(tree.order(), tree.leafOrder());
+        Sink sink = new Sink(channel, Math.max(BUFFER_BYTES, nodeBytes(2 * largestOrder - 1, flags)));
+        sink.require(HEADER_BYTES);
+        sink.buffer.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(tree.order()).putInt(tree.search().ordinal())
+                .putInt(tree.size()).putInt(tree.tombstones()).putInt(tree.height()).putDouble(tree.compactionThreshold())
+                .putInt(tree.leafOrder());
+        if (tree.root() != null) writeNode(tree.root(), flags, sink);
+        sink.finish();
+    }
+
+    private static void writeNode(BTreeNode node, int flags, Sink sink) throws IOException {
+        int keysNumber = node.getKeysNumber();
+        ByteBuffer buffer = sink.require(nodeBytes(keysNumber, flags));
+        buffer.putInt(keysNumber);
+        buffer.asIntBuffer().put(node.keys(), 0, keysNumber);
+        buffer.position(buffer.position() + keysNumber * Integer.BYTES);
+        if ((flags & VALUES) != 0) {
+            buffer.asLongBuffer().put(node.values(), 0, keysNumber);
+            buffer.position(buffer.position() + keysNumber * Long.BYTES);
+        }
+        if ((flags & TOMBSTONES) != 0) {
+            for (int i = 0; i < keysNumber; i += 8) {
+                int bits = 0;
+                for (int j = i; j < Math.min(i + 8, keysNumber); j++) {
+                    if (node.isDead(j)) bits |= 1 << (j - i);
+                }
+                buffer.put((byte) bits);
+            }
+        }
+        if (node.isLeaf()) return;
+        BTreeNode[] children = node.children();
+        for (int i = 0; i < node.getChildrenNumber(); i++)
+            writeNode(children[i], flags, sink);
+    }
+
+    //a file channel is mapped from its position a window at a time, any other channel is read through a buffer
+    static BTree read(ReadableByteChannel channel, boolean withValues) throws IOException {
+        Source source = channel instanceof FileChannel ? new MappedSource((FileChannel) channel) : new ChannelSource(channel);
+        ByteBuffer header = source.require(2 * Integer.BYTES);
+        if (header.getInt() != MAGIC) throw new IOException("Not a tree image");
+        int version = header.getInt();
+        if (version != VERSION && version != 1) throw new IOException("Unsupported tree image version " + version);
+        header = source.require((version == 1 ? VERSION_1_HEADER_BYTES : HEADER_BYTES) - 2 * Integer.BYTES);
+        int flags = header.getInt();
+        int order = header.getInt();
+        int search = header.getInt();
+        int size = header.getInt();
+        int tombstones = header.getInt();
+        int height = header.getInt();
+        double compactionThreshold = header.getDouble();
+        int leafOrder = version == 1 ? order : header.getInt();
+        if (((flags & VALUES) != 0) != withValues)
+            throw new IOException(withValues ? "The image holds a set, not a map" : "The image holds a map, not a set");
+        if (order < 2 || leafOrder < 2 || search < 0 || search >= SearchStrategy.values().length || size < 0 || tombstones < 0
+                || height < 0 || (height == 0) != (size + tombstones == 0))
+            throw new IOException("Corrupt tree image header");
+
+        BTree tree = new BTree(order, leafOrder, SearchStrategy.values()[search], withValues);
+        Loader loader = new Loader(tree, flags, height, (long) size + tombstones, source);
+        source.expect(minimumBytes(loader.total, flags));
+        BTreeNode root = height == 0 ? null : loader.readNode(0);
+        if (loader.keys != (long) size + tombstones || loader.dead != tombstones)
+            throw new IOException("Corrupt tree image: key count does not match its header");
+        source.verifyChecksum();
+        tree.restore(root, size, tombstones, (flags & RAGGED) != 0);
+        if ((flags & LAZY_DELETES) != 0) tree.enableLazyDeletes(compactionThreshold);
+        return tree;
+    }
+
+    //the fewest bytes the nodes holding keys and the checksum after them can take
+    private static long minimumBytes(long keys, int flags) {
+        return keys * (Integer.BYTES + ((flags & VALUES) != 0 ? Long.BYTES : 0)) + (keys > 0 ? Integer.BYTES : 0) + Integer.BYTES;
+    }
+
+    private static int nodeBytes(int keysNumber, int flags) {
+        return Integer.BYTES + keysNumber * Integer.BYTES + ((flags & VALUES) != 0 ? keysNumber * Long.BYTES : 0)
+                + ((flags & TOMBSTONES) != 0 ? (keysNumber + 7) / 8 : 0);
+    }
+
+    private static final class Loader {
+        private final int order;
+        private final int leafOrder;
+        private final SearchStrategy search;
+        private final boolean withValues;
+        private final int flags;
+        private final int height;
+        private final Source source;
+        //the keys the header announces
+        private final long total;
+        private long keys;
+        private long dead;
+
+        private Loader(BTree tree, int flags, int height, long total, Source source) {
+            this.order = tree.order();
+            this.leafOrder = tree.leafOrder();
+            this.search = tree.search();
+            this.withValues = tree.hasValues();
+            this.flags = flags;
+            this.height = height;
+            this.total = total;
+            this.source = source;
+        }
+
+        private BTreeNode readNode(int depth) throws IOException {
+            ByteBuffer buffer = source.require(Integer.BYTES);
+            int keysNumber = buffer.getInt();
+            int nodeOrder = depth == height - 1 ? leafOrder : order;
+            if (keysNumber < 1 || keysNumber > 2 * nodeOrder - 1) throw new IOException("Corrupt tree image node");
+            buffer = source.require(nodeBytes(keysNumber, flags) - Integer.BYTES);
+
+            BTreeNode node = new BTreeNode(nodeOrder, search, withValues);
+            buffer.asIntBuffer().get(node.keys(), 0, keysNumber);
+            buffer.position(buffer.position() + keysNumber * Integer.BYTES);
+            if (withValues) {
+                buffer.asLongBuffer().get(node.values(), 0, keysNumber);
+                buffer.position(buffer.position() + keysNumber * Long.BYTES);
+            }
+            node.setKeysNumber(keysNumber);
+            if ((flags & TOMBSTONES) != 0) {
+                for (int i = 0; i < keysNumber; i += 8) {
+                    int bits = buffer.get();
+                    for (int j = i; j < Math.min(i + 8, keysNumber); j++) {
+                        if ((bits & 1 << (j - i)) == 0) continue;
+                        node.markDead(j);
+                        dead++;
+                    }
+                }
+            }
+            keys += keysNumber;
+            source.expect(minimumBytes(Math.max(0, total - keys), flags));
+
+            if (depth < height - 1) {
+                for (int i = 0; i <= keysNumber; i++)
+                    node.updateChildAt(i, readNode(depth + 1));
+            }
+            return node;
+        }
+    }
+
+    private static final class Sink {
+        private final WritableByteChannel channel;
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer buffer;
+
+        private Sink(WritableByteChannel channel, int capacity) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        //the buffer with room for at least bytes more
+        private ByteBuffer require(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+            return buffer;
+        }
+
+        private void finish() throws IOException {
+            flush();
+            buffer.putInt((int) crc.getValue());
+            flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private abstract static class Source {
+        private final CRC32 crc = new CRC32();
+        ByteBuffer buffer;
+        //the bytes of the buffer before this position are in the checksum
+        private int checked;
+
+        //the buffer with at least bytes more to read
+        final ByteBuffer require(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                checksum();
+                refill(bytes);
+                checked = buffer.position();
+            }
+            return buffer;
+        }
+
+        final void verifyChecksum() throws IOException {
+            checksum();
+            int expected = (int) crc.getValue();
+            if (require(Integer.BYTES).getInt() != expected) throw new IOException("Corrupt tree image: checksum mismatch");
+            finished();
+        }
+
+        private void checksum() {
+            ByteBuffer read = buffer.duplicate();
+            read.position(checked).limit(buffer.position());
+            crc.update(read);
+            checked = buffer.position();
+        }
+
+        //keeps the unread bytes and makes at least bytes readable
+        abstract void refill(int bytes) throws IOException;
+
+        //the image goes on for at least bytes past what has been read
+        void expect(long bytes) {
+        }
+
+        void finished() throws IOException {
+        }
+    }
+
+    //reads ahead only as far as the image is known to reach, so a stream is left just past the image
+    private static final class ChannelSource extends Source {
+        private final ReadableByteChannel channel;
+        //bytes taken from the channel, and how many of them the image is known to hold at least
+        private long taken;
+        private long end;
+
+        private ChannelSource(ReadableByteChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN).limit(0);
+        }
+
+        @Override
+        void expect(long bytes) {
+            end = Math.max(end, taken - buffer.remaining() + bytes);
+        }
+
+        @Override
+        void refill(int bytes) throws IOException {
+            long ahead = Math.max(bytes, end - (taken - buffer.remaining()));
+            if (bytes > buffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+                buffer = larger.put(buffer);
+            } else {
+                buffer.compact();
+            }
+            buffer.limit((int) Math.min(buffer.capacity(), ahead));
+            while (buffer.position() < bytes) {
+                int read = channel.read(buffer);
+                if (read < 0) throw new EOFException("Tree image ends early");
+                taken += read;
+            }
+            buffer.flip();
+        }
+    }
+
+    private static final class MappedSource extends Source {
+        private final FileChannel channel;
+        private final long end;
+        //file position of the start of the mapped window
+        private long start;
+
+        private MappedSource(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.end = channel.size();
+            this.start = channel.position();
+            this.buffer = ByteBuffer.allocate(0);
+        }
+
+        @Override
+        void refill(int bytes) throws IOException {
+            start += buffer.position();
+            long length = Math.min(Math.max(MAP_BYTES, bytes), end - start);
+            if (length < bytes) throw new EOFException("Tree image ends early");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        //leaves the channel just past the image, as a read through it would
+        @Override
+        void finished() throws IOException {
+            channel.position(start + buffer.position());
+        }
+    }
+}
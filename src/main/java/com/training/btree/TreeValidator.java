@@ -0,0 +1,193 @@
+package com.training.btree;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//checks every invariant of a tree in one depth-first pass, each node against the key bounds its parent sets, so the
+//whole check is O(n); the upper levels fork a task per child and the rest of the tree is checked where it is reached
+final class TreeValidator {
+    //subtrees with fewer levels below them than this are checked in the task that reaches them
+    private static final int FORK_LEVELS = 3;
+
+    private final int innerOrder;
+    private final int leafOrder;
+    private final int height;
+    private final boolean counted;
+    private final Aggregate aggregate;
+    private final boolean ragged;
+    //set by the first violation so the other tasks stop early
+    private volatile boolean failed;
+
+    private TreeValidator(BTree tree) {
+        this.innerOrder = tree.order();
+        this.leafOrder = tree.leafOrder();
+        this.height = tree.height();
+        this.counted = tree.isCounted();
+        this.aggregate = tree.keptAggregate();
+        this.ragged = tree.isRagged();
+    }
+
+    //the first violation found, or null for a sound tree
+    static TreeViolation validate(BTree tree) {
+        BTreeNode root = tree.root();
+        if (root == null) {
+            if (tree.size() != 0 || tree.tombstones() != 0) return new TreeViolation(new int[0], "Empty tree with keys counted");
+            return null;
+        }
+        TreeValidator validator = new TreeValidator(tree);
+        Subtree task = validator.new Subtree(root, Long.MIN_VALUE, Long.MAX_VALUE, 0, true, new int[0]);
+        ForkJoinPool.commonPool().invoke(task);
+        if (task.violation != null) return task.violation;
+        if (task.live != tree.size())
+            return new TreeViolation(new int[0], "The tree holds " + task.live + " live keys, its size is " + tree.size());
+        if (task.dead != tree.tombstones())
+            return new TreeViolation(new int[0], "The tree holds " + task.dead + " tombstones, it counts " + tree.tombstones());
+        return null;
+    }
+
+    private final class Subtree extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BTreeNode node;
+        private final long low;
+        private final long high;
+        private final int depth;
+        private final boolean rightEdge;
+        //the child indexes down to the node, and below it while checking in place
+        private int[] path;
+        private long live;
+        private long dead;
+        private TreeViolation violation;
+
+        //the keys of the subtree lie strictly between low and high
+        private Subtree(BTreeNode node, long low, long high, int depth, boolean rightEdge, int[] path) {
+            this.node = node;
+            this.low = low;
+            this.high = high;
+            this.depth = depth;
+            this.rightEdge = rightEdge;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            if (failed) {
+                live = -1;
+                return;
+            }
+            if (height - depth <= FORK_LEVELS) {
+                path = Arrays.copyOf(path, height);
+                live = check(node, low, high, depth, rightEdge);
+                return;
+            }
+            if (!checkNode(node, low, high, depth, rightEdge)) {
+                live = -1;
+                return;
+            }
+
+            int childrenNumber = node.getChildrenNumber();
+            Subtree[] subtrees = new Subtree[childrenNumber];
+            for (int i = 0; i < childrenNumber; i++) {
+                int[] childPath = Arrays.copyOf(path, depth + 1);
+                childPath[depth] = i;
+                subtrees[i] = new Subtree(node.children()[i], bound(node, i - 1, low), bound(node, i, high), depth + 1,
+                        rightEdge && i == childrenNumber - 1, childPath);
+            }
+            invokeAll(subtrees);
+            live = -1;
+            for (Subtree subtree : subtrees) {
+                if (subtree.violation != null) {
+                    violation = subtree.violation;
+                    return;
+                }
+            }
+            //a subtree that stopped early left the violation to one that is not below this node
+            for (Subtree subtree : subtrees) {
+                if (subtree.live < 0) return;
+            }
+            live = node.getKeysNumber() - node.deadNumber();
+            dead = node.deadNumber();
+            for (int i = 0; i < childrenNumber; i++) {
+                if (!checkChild(node, depth, i, subtrees[i].live)) {
+                    live = -1;
+                    return;
+                }
+                live += subtrees[i].live;
+                dead += subtrees[i].dead;
+            }
+        }
+
+        //the live keys of the subtree, or -1 once a violation is found
+        private long check(BTreeNode node, long low, long high, int depth, boolean rightEdge) {
+            if (failed || !checkNode(node, low, high, depth, rightEdge)) return -1;
+            long live = node.getKeysNumber() - node.deadNumber();
+            dead += node.deadNumber();
+            if (node.isLeaf()) return live;
+
+            int childrenNumber = node.getChildrenNumber();
+            for (int i = 0; i < childrenNumber; i++) {
+                path[depth] = i;
+                long childLive = check(node.children()[i], bound(node, i - 1, low), bound(node, i, high), depth + 1,
+                        rightEdge && i == childrenNumber - 1);
+                if (childLive < 0 || !checkChild(node, depth, i, childLive)) return -1;
+                live += childLive;
+            }
+            return live;
+        }
+
+        private boolean checkNode(BTreeNode node, long low, long high, int depth, boolean rightEdge) {
+            int keysNumber = node.getKeysNumber();
+            int order = node.isLeaf() ? leafOrder : innerOrder;
+            if (node.isLeaf() != (depth == height - 1))
+                return fail(depth, node.isLeaf() ? "Leaf above the bottom level" : "Inner node on the bottom level");
+            if (node.order() != order) return fail(depth, "Node of order " + node.order() + " where " + order + " is expected");
+            //only the root, and while appends leave it short the right edge, may hold fewer than order - 1 keys
+            int minKeys = depth == 0 || ragged && rightEdge ? 1 : order - 1;
+            if (keysNumber < minKeys) return fail(depth, keysNumber + " keys, fewer than " + minKeys);
+
+            int[] keys = node.keys();
+            long previous = low;
+            int deadNumber = 0;
+            for (int i = 0; i < keysNumber; i++) {
+                if (keys[i] <= previous) return fail(depth, "Key " + keys[i] + " at " + i + " is out of order or below its bound");
+                previous = keys[i];
+                if (node.isDead(i)) deadNumber++;
+            }
+            if (previous >= high) return fail(depth, "Key " + previous + " is above its bound");
+            if (deadNumber != node.deadNumber())
+                return fail(depth, deadNumber + " dead keys, the node counts " + node.deadNumber());
+
+            if (node.isLeaf()) return true;
+            BTreeNode[] children = node.children();
+            if (node.getChildrenNumber() != keysNumber + 1)
+                return fail(depth, node.getChildrenNumber() + " children for " + keysNumber + " keys");
+            for (int i = 0; i <= keysNumber; i++) {
+                if (children[i] == null) return fail(depth, "Child " + i + " is missing");
+            }
+            if (keysNumber + 1 < children.length && children[keysNumber + 1] != null)
+                return fail(depth, "Child slot past the last child is in use");
+            return true;
+        }
+
+        //the cached count and aggregate of a child against the child itself
+        private boolean checkChild(BTreeNode node, int depth, int index, long childLive) {
+            if (counted && node.countAt(index) != childLive)
+                return fail(depth, "Child " + index + " counts " + node.countAt(index) + " keys, it holds " + childLive);
+            if (aggregate != null && node.aggregateAt(index) != node.children()[index].aggregate(aggregate))
+                return fail(depth, "The cached aggregate of child " + index + " is stale");
+            return true;
+        }
+
+        private boolean fail(int depth, String message) {
+            if (violation == null) violation = new TreeViolation(Arrays.copyOf(path, depth), message);
+            failed = true;
+            return false;
+        }
+    }
+
+    //the key of the node at index as a bound, or the bound of the node itself past either end
+    private static long bound(BTreeNode node, int index, long outer) {
+        return index < 0 || index >= node.getKeysNumber() ? outer : node.keys()[index];
+    }
+}
@@ -0,0 +1,27 @@
+package com.training.btree;
+
+import java.util.Arrays;
+
+//a broken invariant and where it is: the child indexes taken from the root down to the offending node
+public final class TreeViolation {
+    private final int[] path;
+    private final String message;
+
+    TreeViolation(int[] path, String message) {
+        this.path = path;
+        this.message = message;
+    }
+
+    public int[] path() {
+        return path.clone();
+    }
+
+    public String message() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "at " + Arrays.toString(path) + ": " + message;
+    }
+}
@@ -0,0 +1,135 @@
+package com.training.btree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+//an append-only log of logical inserts and deletes: one operation byte, the key and a CRC32 of both per record
+final class WriteAheadLog implements Closeable {
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+
+    private static final int RECORD_BYTES = 1 + Integer.BYTES + Integer.BYTES;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final int groupSize;
+    private final ByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    //records appended since the last sync
+    private int pending;
+    private long syncs;
+
+    private WriteAheadLog(FileChannel channel, FsyncPolicy policy, int groupSize) {
+        if (groupSize < 1) throw new IllegalArgumentException("Group size must be positive");
+        this.channel = channel;
+        this.policy = policy;
+        this.groupSize = groupSize;
+        this.buffer = ByteBuffer.allocate(Math.max(groupSize, 256) * RECORD_BYTES);
+    }
+
+    static WriteAheadLog open(Path path, FsyncPolicy policy, int groupSize) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new WriteAheadLog(channel, policy, groupSize);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //applies the intact records to the tree and cuts off a tail torn by a crash; returns the number of records applied
+    int replay(BTree tree) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        long valid = 0;
+        int replayed = 0;
+        channel.position(0);
+        while (channel.read(records) > 0) {
+            records.flip();
+            while (records.remaining() >= RECORD_BYTES) {
+                byte operation = records.get(records.position());
+                int key = records.getInt(records.position() + 1);
+                int checksum = records.getInt(records.position() + 5);
+                if ((operation != INSERT && operation != DELETE) || checksum != checksum(operation, key))
+                    return truncateAt(valid, replayed);
+                if (operation == INSERT) tree.insert(key);
+                else tree.delete(key);
+                records.position(records.position() + RECORD_BYTES);
+                valid += RECORD_BYTES;
+                replayed++;
+            }
+            records.compact();
+        }
+        return truncateAt(valid, replayed);
+    }
+
+    void append(byte operation, int key) throws IOException {
+        if (buffer.remaining() < RECORD_BYTES) write();
+        buffer.put(operation).putInt(key).putInt(checksum(operation, key));
+        pending++;
+        if (policy == FsyncPolicy.ALWAYS || (policy == FsyncPolicy.GROUP && pending >= groupSize)) commit();
+    }
+
+    //makes every appended record as durable as the policy allows with a single sync
+    void commit() throws IOException {
+        write();
+        if (pending == 0) return;
+        if (policy != FsyncPolicy.NEVER) {
+            channel.force(false);
+            syncs++;
+        }
+        pending = 0;
+    }
+
+    //drops every record once a checkpoint holds their effect
+    void truncate() throws IOException {
+        buffer.clear();
+        pending = 0;
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    long syncs() {
+        return syncs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private int truncateAt(long valid, int replayed) throws IOException {
+        if (channel.size() > valid) channel.truncate(valid);
+        channel.position(valid);
+        return replayed;
+    }
+
+    private int checksum(byte operation, int key) {
+        crc.reset();
+        crc.update(operation);
+        crc.update(key >>> 24);
+        crc.update(key >>> 16);
+        crc.update(key >>> 8);
+        crc.update(key);
+        return (int) crc.getValue();
+    }
+}
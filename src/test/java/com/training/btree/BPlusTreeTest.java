@@ -0,0 +1,76 @@
+package com.training.btree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class BPlusTreeTest {
+
+    @Test
+    public void insertAndDelete() {
+        Random random = new Random();
+        BPlusTree bPlusTree = new BPlusTree(3);
+        TreeSet<Integer> expected = new TreeSet<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            int key = random.nextInt(50_000);
+            if (random.nextInt(3) == 0) {
+                bPlusTree.delete(key);
+                expected.remove(key);
+            } else {
+                bPlusTree.insert(key);
+                expected.add(key);
+            }
+        }
+
+        Assertions.assertTrue(bPlusTree.isBalanced());
+        Assertions.assertEquals(expected.size(), bPlusTree.size());
+        for (int key = 0; key < 50_000; key++)
+            Assertions.assertEquals(expected.contains(key), bPlusTree.contains(key));
+    }
+
+    @Test
+    public void deleteEverything() {
+        BPlusTree bPlusTree = new BPlusTree(4);
+        for (int key = 0; key < 10_000; key++)
+            bPlusTree.insert(key);
+        for (int key = 0; key < 10_000; key++)
+            bPlusTree.delete(key);
+
+        Assertions.assertTrue(bPlusTree.isEmpty());
+        Assertions.assertTrue(bPlusTree.isBalanced());
+        Assertions.assertFalse(bPlusTree.cursor().seekFirst().hasNext());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new BPlusTree(1));
+    }
+
+    @Test
+    public void rangeScan() {
+        Random random = new Random();
+        BPlusTree bPlusTree = new BPlusTree(50);
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(1_000_000);
+            bPlusTree.insert(key);
+            expected.add(key);
+        }
+
+        BPlusTreeCursor cursor = bPlusTree.cursor();
+        for (int round = 0; round < 1_000; round++) {
+            int from = random.nextInt(1_000_000);
+            int to = from + random.nextInt(20_000);
+
+            cursor.seek(from, to);
+            for (int key : expected.subSet(from, to))
+                Assertions.assertEquals(key, cursor.next());
+            Assertions.assertFalse(cursor.hasNext());
+        }
+
+        cursor.seekFirst();
+        for (int key : expected)
+            Assertions.assertEquals(key, cursor.next());
+        Assertions.assertThrows(NoSuchElementException.class, cursor::next);
+    }
+}
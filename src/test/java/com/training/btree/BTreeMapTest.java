@@ -0,0 +1,90 @@
+package com.training.btree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class BTreeMapTest {
+
+    @Test
+    public void putAndGet() {
+        BTreeMap map = new BTreeMap(3, -1);
+        Assertions.assertEquals(-1, map.put(10, 100));
+        Assertions.assertEquals(-1, map.put(5, 50));
+        Assertions.assertEquals(100, map.put(10, 101));
+
+        Assertions.assertEquals(101, map.get(10));
+        Assertions.assertEquals(50, map.get(5));
+        Assertions.assertEquals(-1, map.get(7));
+        Assertions.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void floorAndCeiling() {
+        BTreeMap map = new BTreeMap(2);
+        for (int key = 0; key <= 100; key += 10)
+            map.put(key, key);
+
+        Assertions.assertEquals(30, map.floorKey(30));
+        Assertions.assertEquals(30, map.floorKey(39));
+        Assertions.assertEquals(40, map.ceilingKey(31));
+        Assertions.assertEquals(100, map.floorKey(1_000));
+        Assertions.assertEquals(0, map.ceilingKey(-5));
+        Assertions.assertThrows(NoSuchElementException.class, () -> map.floorKey(-1));
+        Assertions.assertThrows(NoSuchElementException.class, () -> map.ceilingKey(101));
+    }
+
+    @Test
+    public void snapshotKeepsValues() {
+        BTreeMap map = new BTreeMap(2, -1);
+        for (int key = 0; key < 1_000; key++)
+            map.put(key, key * 10L);
+
+        BTreeMap snapshot = map.snapshot();
+        for (int key = 0; key < 1_000; key++) {
+            if (key % 2 == 0) map.remove(key);
+            else map.put(key, -key);
+        }
+
+        for (int key = 0; key < 1_000; key++) {
+            Assertions.assertEquals(key * 10L, snapshot.get(key));
+            Assertions.assertEquals(key % 2 == 0 ? -1 : -key, map.get(key));
+        }
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.put(1, 1));
+    }
+
+    @Test
+    public void matchesTreeMap() {
+        Random random = new Random();
+        BTreeMap map = new BTreeMap(5);
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            int key = random.nextInt(20_000);
+            if (random.nextInt(3) == 0) {
+                Long removed = expected.remove(key);
+                Assertions.assertEquals(removed == null ? map.missingValue() : removed, map.remove(key));
+            } else {
+                long value = random.nextLong();
+                Long previous = expected.put(key, value);
+                Assertions.assertEquals(previous == null ? map.missingValue() : previous, map.put(key, value));
+            }
+        }
+
+        Assertions.assertTrue(map.isBalanced());
+        Assertions.assertEquals(expected.size(), map.size());
+        for (int key = -1; key <= 20_000; key++) {
+            Long value = expected.get(key);
+            Assertions.assertEquals(value == null ? map.missingValue() : value, map.get(key));
+            Assertions.assertEquals(value != null, map.containsKey(key));
+
+            Integer floor = expected.floorKey(key);
+            if (floor != null) Assertions.assertEquals(floor, map.floorKey(key));
+            Integer ceiling = expected.ceilingKey(key);
+            if (ceiling != null) Assertions.assertEquals(ceiling, map.ceilingKey(key));
+        }
+    }
+}
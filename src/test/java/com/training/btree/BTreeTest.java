@@ -3,9 +3,19 @@ package com.training.btree;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.stream.StreamSupport;
 
 public class BTreeTest {
 
@@ -44,6 +54,35 @@ public class BTreeTest {
         Assertions.assertTrue(bNode.isLeaf());
     }
 
+    @Test
+    public void searchStrategiesAgree() {
+        Random random = new Random();
+        for (int round = 0; round < 1_000; round++) {
+            int size = random.nextInt(800);
+            int[] keys = random.ints(size, 0, 2_000).sorted().distinct().toArray();
+            int key = random.nextInt(2_100) - 50;
+
+            int expected = SearchStrategy.LINEAR.findIndex(keys, keys.length, key);
+            for (SearchStrategy search : SearchStrategy.values())
+                Assertions.assertEquals(expected, search.findIndex(keys, keys.length, key), search.name());
+        }
+    }
+
+    @Test
+    public void insertWithEachSearchStrategy() {
+        Random random = new Random();
+        int[] keys = new int[200_000];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = random.nextInt(400_000);
+
+        for (SearchStrategy search : SearchStrategy.values()) {
+            BTree bTree = new BTree(200, search);
+            bTree.insert(keys);
+            bTree.delete(Arrays.copyOf(keys, keys.length / 2));
+            Assertions.assertTrue(bTree.isBalanced(), search.name());
+        }
+    }
+
     @Test
     public void insert() {
 
@@ -58,6 +97,816 @@ public class BTreeTest {
         Assertions.assertTrue(bTree.isBalanced());
     }
 
+    @Test
+    public void containsAfterDelete() {
+        Random random = new Random();
+        int[] keys = new int[100_000];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = random.nextInt(200_000);
+
+        BTree bTree = new BTree(4);
+        bTree.insert(keys);
+        Set<Integer> expected = new HashSet<>();
+        for (int key : keys) expected.add(key);
+
+        for (int i = 0; i < keys.length; i += 2) {
+            bTree.delete(keys[i]);
+            expected.remove(keys[i]);
+        }
+
+        Assertions.assertTrue(bTree.isBalanced());
+        Assertions.assertEquals(expected.size(), bTree.size());
+        for (int key = 0; key < 200_000; key++)
+            Assertions.assertEquals(expected.contains(key), bTree.contains(key));
+    }
+
+    @Test
+    public void bulkLoad() {
+        Random random = new Random();
+        int[] keys = new int[1_000_000];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = random.nextInt(2_000_000);
+        int[] distinct = Arrays.stream(keys).sorted().distinct().toArray();
+
+        for (int order : new int[]{2, 3, 7, 100}) {
+            for (double fillFactor : new double[]{0.1, 0.5, 0.7, 1.0}) {
+                BTree bTree = BTree.bulkLoad(order, keys, fillFactor);
+                Assertions.assertTrue(bTree.isBalanced());
+                Assertions.assertEquals(distinct.length, bTree.size());
+                for (int i = 0; i < 1_000; i++) {
+                    int key = random.nextInt(2_000_000);
+                    Assertions.assertEquals(Arrays.binarySearch(distinct, key) >= 0, bTree.contains(key));
+                }
+
+                bTree.insert(Arrays.copyOf(keys, 10_000));
+                bTree.delete(Arrays.copyOfRange(distinct, 0, 10_000));
+                Assertions.assertTrue(bTree.isBalanced());
+                Assertions.assertEquals(distinct.length - 10_000, bTree.size());
+            }
+        }
+
+        for (int size = 0; size < 300; size++) {
+            int[] sorted = new int[size];
+            for (int i = 0; i < size; i++) sorted[i] = 2 * i;
+            BTree bTree = BTree.bulkLoad(3, sorted, 0.5);
+            Assertions.assertTrue(bTree.isBalanced());
+            for (int i = 0; i < size; i++) Assertions.assertTrue(bTree.contains(2 * i));
+        }
+    }
+
+    @Test
+    public void batchInsertAndDelete() {
+        Random random = new Random();
+        for (int order : new int[]{2, 3, 7, 64}) {
+            BTree bTree = new BTree(order);
+            Set<Integer> expected = new HashSet<>();
+            for (int round = 0; round < 40; round++) {
+                int[] batch = new int[random.nextInt(20_000)];
+                for (int i = 0; i < batch.length; i++)
+                    batch[i] = random.nextInt(100_000);
+
+                if (round % 3 == 2) {
+                    bTree.deleteBatch(batch);
+                    for (int key : batch) expected.remove(key);
+                } else {
+                    bTree.insertBatch(batch);
+                    for (int key : batch) expected.add(key);
+                }
+                Assertions.assertTrue(bTree.isBalanced());
+                Assertions.assertEquals(expected.size(), bTree.size());
+            }
+            for (int key = 0; key < 100_000; key++)
+                Assertions.assertEquals(expected.contains(key), bTree.contains(key));
+
+            bTree.deleteBatch(expected.stream().mapToInt(Integer::intValue).toArray());
+            Assertions.assertTrue(bTree.isEmpty());
+        }
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterChanges() {
+        Random random = new Random();
+        BTree bTree = new BTree(5);
+        Set<Integer> live = new HashSet<>();
+        List<BTree> snapshots = new ArrayList<>();
+        List<Set<Integer>> expected = new ArrayList<>();
+
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20_000; i++) {
+                int key = random.nextInt(50_000);
+                if (random.nextBoolean()) {
+                    bTree.insert(key);
+                    live.add(key);
+                } else {
+                    bTree.delete(key);
+                    live.remove(key);
+                }
+            }
+            int[] batch = random.ints(5_000, 0, 50_000).toArray();
+            if (round % 2 == 0) {
+                bTree.insertBatch(batch);
+                for (int key : batch) live.add(key);
+            } else {
+                bTree.deleteBatch(batch);
+                for (int key : batch) live.remove(key);
+            }
+            snapshots.add(bTree.snapshot());
+            expected.add(new HashSet<>(live));
+        }
+
+        for (int i = 0; i < snapshots.size(); i++) {
+            BTree snapshot = snapshots.get(i);
+            Assertions.assertTrue(snapshot.isReadOnly());
+            Assertions.assertTrue(snapshot.isBalanced());
+            Assertions.assertEquals(expected.get(i).size(), snapshot.size());
+            for (int key = 0; key < 50_000; key++)
+                Assertions.assertEquals(expected.get(i).contains(key), snapshot.contains(key));
+        }
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshots.get(0).insert(1));
+        Assertions.assertTrue(bTree.isBalanced());
+        for (int key = 0; key < 50_000; key++)
+            Assertions.assertEquals(live.contains(key), bTree.contains(key));
+    }
+
+    @Test
+    public void statsAndMonitor() throws Exception {
+        Random random = new Random();
+        BTree bTree = new BTree(3);
+        Assertions.assertNull(bTree.stats());
+        ObjectName name = BTreeMonitor.register(bTree, "statsAndMonitor");
+        try {
+            BTreeStats stats = bTree.stats();
+            for (int i = 0; i < 100_000; i++)
+                bTree.insert(random.nextInt(50_000));
+            Assertions.assertTrue(stats.splits() > 0);
+            for (int i = 0; i < 100_000; i++)
+                bTree.delete(random.nextInt(50_000));
+            Assertions.assertTrue(stats.merges() > 0);
+            Assertions.assertTrue(stats.leftBorrows() + stats.rightBorrows() > 0);
+            Assertions.assertTrue(stats.predecessorReplacements() + stats.successorReplacements() > 0);
+
+            int nodes = bTree.nodeCount();
+            double[] fill = bTree.fillFactorPerLevel();
+            Assertions.assertEquals(bTree.height(), fill.length);
+            for (double levelFill : fill)
+                Assertions.assertTrue(levelFill > 0 && levelFill <= 1);
+            //every node but the root holds at least order - 1 of its 2 * order - 1 slots
+            Assertions.assertTrue(nodes <= 1 + bTree.size() / 2);
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assertions.assertEquals(stats.splits(), server.getAttribute(name, "Splits"));
+            Assertions.assertEquals(nodes, server.getAttribute(name, "NodeCount"));
+            Assertions.assertEquals(bTree.height(), server.getAttribute(name, "Height"));
+            Assertions.assertArrayEquals(fill, (double[]) server.getAttribute(name, "FillFactorPerLevel"), 1e-9);
+            Assertions.assertEquals(bTree.size(), server.getAttribute(name, "KeyCount"));
+            server.invoke(name, "resetCounters", null, null);
+            Assertions.assertEquals(0, stats.splits());
+            Assertions.assertEquals(nodes, stats.nodeCount());
+
+            //the per-level counters follow every kind of write without walking the tree
+            bTree.enableNodePool(16);
+            for (int round = 0; round < 24; round++) {
+                int[] keys = random.ints(3_000, 0, 60_000).toArray();
+                switch (round % 6) {
+                    case 0: bTree.insertBatch(keys); break;
+                    case 1: bTree.deleteBatch(keys); break;
+                    case 2:
+                        for (int key = 60_000 + 1_000 * round; key < 61_000 + 1_000 * round; key++) bTree.insert(key);
+                        break;
+                    case 3:
+                        bTree.snapshot();
+                        bTree.delete(keys);
+                        break;
+                    case 4:
+                        bTree.enableLazyDeletes(0.2);
+                        bTree.delete(keys);
+                        assertShape(bTree);
+                        bTree.disableLazyDeletes();
+                        break;
+                    default:
+                        BTree other = BTree.bulkLoad(5, keys);
+                        if (round % 4 == 1) bTree.unionWith(other);
+                        else bTree.removeAll(other);
+                }
+                assertShape(bTree);
+            }
+            bTree.removeAll(bTree);
+            assertShape(bTree);
+            Assertions.assertEquals(0, server.getAttribute(name, "Height"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+
+        bTree.disableStats();
+        Assertions.assertNull(bTree.stats());
+        bTree.insert(1);
+    }
+
+    private static void assertShape(BTree bTree) {
+        BTreeStats stats = bTree.stats();
+        Assertions.assertEquals(bTree.height(), stats.height());
+        Assertions.assertEquals(bTree.nodeCount(), stats.nodeCount());
+        Assertions.assertArrayEquals(bTree.fillFactorPerLevel(),
+                stats.fillFactorPerLevel(bTree.order(), bTree.leafOrder(), (long) bTree.size() + bTree.tombstones()), 1e-9);
+    }
+
+    @Test
+    public void streams() {
+        Random random = new Random();
+        BTree bTree = new BTree(4);
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 200_000; i++) {
+            int key = random.nextInt(1_000_000) - 500_000;
+            bTree.insert(key);
+            expected.add(key);
+        }
+
+        int[] sorted = expected.stream().mapToInt(Integer::intValue).toArray();
+        Assertions.assertArrayEquals(sorted, bTree.stream().toArray());
+        Assertions.assertArrayEquals(sorted, bTree.stream().parallel().toArray());
+        Assertions.assertEquals(expected.stream().mapToLong(Integer::longValue).sum(),
+                bTree.stream().parallel().asLongStream().sum());
+
+        Spliterator.OfInt spliterator = bTree.spliterator();
+        Assertions.assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.SIZED));
+        Assertions.assertEquals(expected.size(), spliterator.getExactSizeIfKnown());
+        Assertions.assertNotNull(spliterator.trySplit());
+
+        for (int round = 0; round < 200; round++) {
+            int from = random.nextInt(1_100_000) - 550_000;
+            int to = from + random.nextInt(50_000);
+            int[] range = expected.subSet(from, to).stream().mapToInt(Integer::intValue).toArray();
+            Assertions.assertArrayEquals(range, bTree.stream(from, to).toArray());
+            Assertions.assertEquals(range.length, bTree.stream(from, to).parallel().filter(key -> key >= from).count());
+        }
+        Assertions.assertEquals(0, bTree.stream(5, 5).count());
+        Assertions.assertEquals(0, new BTree(3).stream().count());
+    }
+
+    @Test
+    public void orderStatistics() {
+        Random random = new Random();
+        BTree bTree = new BTree(3);
+        TreeSet<Integer> expected = new TreeSet<>();
+        Assertions.assertThrows(IllegalStateException.class, () -> bTree.rank(7));
+        bTree.enableCounting();
+        Assertions.assertEquals(0, bTree.rank(7));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> bTree.select(0));
+
+        BTree uncounted = new BTree(3);
+        uncounted.insert(random.ints(500, 0, 5_000).toArray());
+        Assertions.assertNull(uncounted.root().counts());
+        //reads never count, and snapshots only count when their tree did
+        Assertions.assertThrows(IllegalStateException.class, () -> uncounted.select(0));
+        Assertions.assertNull(uncounted.root().counts());
+        BTree uncountedSnapshot = uncounted.snapshot();
+        Assertions.assertThrows(IllegalStateException.class, () -> uncountedSnapshot.rank(7));
+        Assertions.assertThrows(UnsupportedOperationException.class, uncountedSnapshot::enableCounting);
+
+        BTree snapshot = null;
+        TreeSet<Integer> snapshotKeys = null;
+        for (int round = 0; round < 40; round++) {
+            int[] keys = random.ints(500, 0, 5_000).toArray();
+            switch (round % 4) {
+                case 0:
+                    bTree.insert(keys);
+                    for (int key : keys) expected.add(key);
+                    break;
+                case 1:
+                    bTree.delete(keys);
+                    for (int key : keys) expected.remove(key);
+                    break;
+                case 2:
+                    bTree.insertBatch(keys);
+                    for (int key : keys) expected.add(key);
+                    break;
+                default:
+                    bTree.deleteBatch(keys);
+                    for (int key : keys) expected.remove(key);
+            }
+            if (round == 20) {
+                snapshot = bTree.snapshot();
+                snapshotKeys = new TreeSet<>(expected);
+            }
+            Assertions.assertTrue(bTree.isBalanced());
+            assertOrderStatistics(expected, bTree);
+        }
+        assertOrderStatistics(snapshotKeys, snapshot);
+
+        Spliterator.OfInt spliterator = bTree.spliterator();
+        Spliterator.OfInt prefix = spliterator.trySplit();
+        Assertions.assertTrue(prefix.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        Assertions.assertEquals(prefix.estimateSize(), StreamSupport.intStream(prefix, false).count());
+        Assertions.assertEquals(spliterator.estimateSize(), StreamSupport.intStream(spliterator, false).count());
+        Assertions.assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), bTree.stream().parallel().toArray());
+    }
+
+    private static void assertOrderStatistics(TreeSet<Integer> expected, BTree bTree) {
+        Assertions.assertEquals(expected.size(), bTree.size());
+        int rank = 0;
+        for (int key : expected) {
+            Assertions.assertEquals(key, bTree.select(rank));
+            Assertions.assertEquals(rank, bTree.rank(key));
+            Assertions.assertEquals(rank, bTree.rank(key - 1) + (expected.contains(key - 1) ? 1 : 0));
+            rank++;
+        }
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> bTree.select(expected.size()));
+        Assertions.assertEquals(expected.subSet(1_000, 3_000).size(), bTree.countInRange(1_000, 3_000));
+        Assertions.assertEquals(expected.size(), bTree.countInRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        Assertions.assertEquals(0, bTree.countInRange(3_000, 1_000));
+    }
+
+    @Test
+    public void rangeAggregates() {
+        Random random = new Random();
+        Aggregate squares = new Aggregate() {
+            @Override
+            public long identity() {
+                return 0;
+            }
+
+            @Override
+            public long of(int key) {
+                return (long) key * key;
+            }
+
+            @Override
+            public long combine(long left, long right) {
+                return left + right;
+            }
+        };
+        Aggregate[] aggregates = {Aggregate.sum(), Aggregate.min(), Aggregate.max(), squares};
+        int[] initial = random.ints(2_000, -5_000, 5_000).toArray();
+        BTree[] trees = new BTree[aggregates.length];
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = BTree.bulkLoad(2 + i, initial);
+            trees[i].enableAggregate(aggregates[i]);
+        }
+        TreeSet<Integer> expected = new TreeSet<>();
+        trees[0].forEachKey(expected::add);
+        Assertions.assertThrows(IllegalStateException.class, () -> trees[0].enableAggregate(Aggregate.max()));
+        Assertions.assertThrows(IllegalStateException.class, () -> new BTree(3).aggregate(0, 1));
+
+        BTree[] snapshots = new BTree[trees.length];
+        TreeSet<Integer> snapshotKeys = null;
+        for (int round = 0; round < 24; round++) {
+            int[] keys = random.ints(400, -5_000, 5_000).toArray();
+            for (BTree bTree : trees) {
+                switch (round % 4) {
+                    case 0: bTree.insert(keys); break;
+                    case 1: bTree.delete(keys); break;
+                    case 2: bTree.insertBatch(keys); break;
+                    default: bTree.deleteBatch(keys);
+                }
+            }
+            for (int key : keys) {
+                if (round % 2 == 0) expected.add(key);
+                else expected.remove(key);
+            }
+            if (round == 10) {
+                for (int i = 0; i < trees.length; i++) snapshots[i] = trees[i].snapshot();
+                snapshotKeys = new TreeSet<>(expected);
+            }
+            for (int i = 0; i < trees.length; i++) assertAggregates(expected, trees[i], aggregates[i], random);
+        }
+        for (int i = 0; i < trees.length; i++) assertAggregates(snapshotKeys, snapshots[i], aggregates[i], random);
+        Assertions.assertEquals(Long.MAX_VALUE, trees[1].aggregate(6_000, 7_000));
+    }
+
+    private static void assertAggregates(TreeSet<Integer> expected, BTree bTree, Aggregate aggregate, Random random) {
+        for (int round = 0; round < 50; round++) {
+            int from = round == 0 ? Integer.MIN_VALUE : random.nextInt(12_000) - 6_000;
+            int to = round == 0 ? Integer.MAX_VALUE : from + random.nextInt(3_000);
+            long result = aggregate.identity();
+            for (int key : expected.subSet(from, to))
+                result = aggregate.combine(result, aggregate.of(key));
+            Assertions.assertEquals(result, bTree.aggregate(from, to));
+        }
+    }
+
+    @Test
+    public void lazyDeletes() {
+        Random random = new Random();
+        BTree bTree = new BTree(3);
+        bTree.enableStats();
+        bTree.enableAggregate(Aggregate.sum());
+        bTree.enableCounting();
+        bTree.enableLazyDeletes(0.1);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> bTree.enableLazyDeletes(1));
+        TreeSet<Integer> expected = new TreeSet<>();
+        int mostTombstones = 0;
+
+        BTree snapshot = null;
+        TreeSet<Integer> snapshotKeys = null;
+        for (int round = 0; round < 60; round++) {
+            int[] keys = random.ints(300, 0, 4_000).toArray();
+            switch (round % 4) {
+                case 0: bTree.insert(keys); break;
+                case 1: bTree.delete(keys); break;
+                case 2: bTree.insertBatch(keys); break;
+                default: bTree.deleteBatch(Arrays.copyOf(keys, 100));
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (round % 2 == 0) expected.add(keys[i]);
+                else if (round % 4 == 1 || i < 100) expected.remove(keys[i]);
+            }
+            mostTombstones = Math.max(mostTombstones, bTree.tombstones());
+            if (round == 30) {
+                snapshot = bTree.snapshot();
+                snapshotKeys = new TreeSet<>(expected);
+            }
+            Assertions.assertTrue(bTree.isBalanced());
+            assertLiveKeys(expected, bTree, random);
+        }
+        Assertions.assertTrue(mostTombstones > 0);
+        Assertions.assertTrue(bTree.stats().compactions() > 0);
+        assertLiveKeys(snapshotKeys, snapshot, random);
+
+        bTree.disableLazyDeletes();
+        Assertions.assertEquals(0, bTree.tombstones());
+        assertLiveKeys(expected, bTree, random);
+        bTree.delete(expected.first());
+        expected.remove(expected.first());
+        Assertions.assertEquals(0, bTree.tombstones());
+        assertLiveKeys(expected, bTree, random);
+
+        //counts first built while the leaves hold tombstones
+        BTree lazy = new BTree(3);
+        TreeSet<Integer> live = new TreeSet<>();
+        for (int key = 0; key < 100; key++) {
+            lazy.insert(key);
+            if (key % 3 != 0) live.add(key);
+        }
+        lazy.enableLazyDeletes(0.9);
+        for (int key = 0; key < 100; key += 3) lazy.delete(key);
+        Assertions.assertTrue(lazy.tombstones() > 0);
+        lazy.enableCounting();
+        Assertions.assertEquals(live.headSet(99).size(), lazy.rank(99));
+        Assertions.assertEquals(live.size(), lazy.countInRange(0, 100));
+        Assertions.assertEquals(live.last(), lazy.select(lazy.size() - 1));
+        lazy.enableAggregate(Aggregate.sum());
+        assertLiveKeys(live, lazy, random);
+    }
+
+    private static void assertLiveKeys(TreeSet<Integer> expected, BTree bTree, Random random) {
+        Assertions.assertEquals(expected.size(), bTree.size());
+        Assertions.assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), bTree.stream().toArray());
+        Assertions.assertEquals(expected.size(), bTree.spliterator().getExactSizeIfKnown());
+        for (int i = 0; i < 200; i++) {
+            int key = random.nextInt(4_200) - 100;
+            Assertions.assertEquals(expected.contains(key), bTree.contains(key));
+            Assertions.assertEquals(expected.headSet(key).size(), bTree.rank(key));
+            Assertions.assertEquals(expected.headSet(key).stream().mapToLong(Integer::longValue).sum(), bTree.aggregate(Integer.MIN_VALUE, key));
+            Integer floor = expected.floor(key);
+            if (floor == null) Assertions.assertThrows(NoSuchElementException.class, () -> bTree.floorKey(key));
+            else Assertions.assertEquals(floor, bTree.floorKey(key));
+            Integer ceiling = expected.ceiling(key);
+            if (ceiling == null) Assertions.assertThrows(NoSuchElementException.class, () -> bTree.ceilingKey(key));
+            else Assertions.assertEquals(ceiling, bTree.ceilingKey(key));
+        }
+        if (!expected.isEmpty()) {
+            int rank = random.nextInt(expected.size());
+            Assertions.assertEquals(expected.stream().skip(rank).findFirst().get(), bTree.select(rank));
+        }
+    }
+
+    @Test
+    public void sequentialAppends() {
+        Random random = new Random();
+        for (int order : new int[]{2, 3, 16}) {
+            BTree bTree = new BTree(order);
+            bTree.enableAggregate(Aggregate.sum());
+            bTree.enableCounting();
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int key = 0; key < 4_000; key += 2) {
+                bTree.insert(key);
+                expected.add(key);
+            }
+            Assertions.assertTrue(bTree.isBalanced());
+            assertLiveKeys(expected, bTree, random);
+            double[] fill = bTree.fillFactorPerLevel();
+            Assertions.assertTrue(fill[fill.length - 1] > (order == 16 ? 0.95 : 0.6));
+
+            BTree snapshot = bTree.snapshot();
+            for (int key = 4_000; key < 4_100; key++) {
+                bTree.insert(key);
+                expected.add(key);
+            }
+            for (int i = 0; i < 500; i++) {
+                int key = random.nextInt(4_000);
+                if (i % 2 == 0) {
+                    bTree.insert(key);
+                    expected.add(key);
+                } else {
+                    bTree.delete(key);
+                    expected.remove(key);
+                }
+                if (i == 0) Assertions.assertTrue(bTree.isBalanced());
+            }
+            Assertions.assertTrue(bTree.isBalanced());
+            assertLiveKeys(expected, bTree, random);
+            Assertions.assertEquals(2_000, snapshot.size());
+            Assertions.assertEquals(3_998, snapshot.floorKey(Integer.MAX_VALUE));
+        }
+
+        BTreeMap map = new BTreeMap(8, -1);
+        for (int key = 0; key < 10_000; key++) map.put(key, 7L * key);
+        for (int key = 0; key < 10_000; key += 3) map.remove(key);
+        for (int key = 0; key < 10_000; key++) Assertions.assertEquals(key % 3 == 0 ? -1 : 7L * key, map.get(key));
+    }
+
+    @Test
+    public void setOperations() {
+        Random random = new Random();
+        for (int round = 0; round < 30; round++) {
+            int order = 2 + random.nextInt(20);
+            int offset = round % 3 == 0 ? 50_000 : 0;
+            BTree first = new BTree(order);
+            first.insert(random.ints(random.nextInt(20_000), 0, 60_000).toArray());
+            BTree second = new BTree(2 + random.nextInt(20));
+            second.enableLazyDeletes(0.9);
+            for (int key = offset; key < offset + 30_000; key += 1 + random.nextInt(4)) second.insert(key);
+            second.delete(random.ints(3_000, offset, offset + 30_000).toArray());
+
+            TreeSet<Integer> left = keySet(first);
+            TreeSet<Integer> right = keySet(second);
+            TreeSet<Integer> union = new TreeSet<>(left);
+            union.addAll(right);
+            TreeSet<Integer> intersection = new TreeSet<>(left);
+            intersection.retainAll(right);
+            TreeSet<Integer> difference = new TreeSet<>(left);
+            difference.removeAll(right);
+
+            assertKeys(union, BTree.union(first, second));
+            assertKeys(intersection, BTree.intersect(first, second));
+            assertKeys(difference, BTree.difference(first, second));
+            Assertions.assertEquals(order, BTree.union(first, second).order());
+
+            BTree snapshot = first.snapshot();
+            BTree copy = BTree.union(first, new BTree(3));
+            copy.unionWith(second);
+            assertKeys(union, copy);
+            copy = BTree.union(first, new BTree(3));
+            copy.retainAll(second);
+            assertKeys(intersection, copy);
+            first.removeAll(second);
+            assertKeys(difference, first);
+            assertKeys(left, snapshot);
+        }
+
+        BTree bTree = BTree.bulkLoad(8, new Random().ints(100_000).toArray());
+        TreeSet<Integer> expected = keySet(bTree);
+        BTree few = new BTree(3);
+        few.insert(1, 2, 3, expected.first());
+        bTree.unionWith(few);
+        expected.addAll(Arrays.asList(1, 2, 3));
+        assertKeys(expected, bTree);
+        bTree.removeAll(few);
+        expected.removeAll(Arrays.asList(1, 2, 3, expected.first()));
+        assertKeys(expected, bTree);
+        bTree.removeAll(bTree);
+        Assertions.assertTrue(bTree.isEmpty());
+    }
+
+    private static TreeSet<Integer> keySet(BTree bTree) {
+        TreeSet<Integer> keys = new TreeSet<>();
+        bTree.stream().forEach(keys::add);
+        return keys;
+    }
+
+    private static void assertKeys(TreeSet<Integer> expected, BTree bTree) {
+        Assertions.assertTrue(bTree.isBalanced());
+        Assertions.assertEquals(expected.size(), bTree.size());
+        Assertions.assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), bTree.stream().toArray());
+    }
+
+    @Test
+    public void innerAndLeafOrders() {
+        Random random = new Random();
+        for (int[] orders : new int[][]{{2, 32}, {16, 3}, {5, 5}}) {
+            BTree bTree = new BTree(orders[0], orders[1]);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int round = 0; round < 12; round++) {
+                int[] keys = random.ints(5_000, 0, 30_000).toArray();
+                switch (round % 4) {
+                    case 0: bTree.insert(keys); break;
+                    case 1: bTree.delete(Arrays.copyOf(keys, 2_000)); break;
+                    case 2: bTree.insertBatch(keys); break;
+                    default: bTree.deleteBatch(Arrays.copyOf(keys, 2_000));
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    if (round % 2 == 0) expected.add(keys[i]);
+                    else if (i < 2_000) expected.remove(keys[i]);
+                }
+                assertKeys(expected, bTree);
+                assertNodeOrders(bTree.root(), orders[0], orders[1]);
+            }
+            for (int key = 30_000; key < 35_000; key++) {
+                bTree.insert(key);
+                expected.add(key);
+            }
+            assertKeys(expected, bTree);
+            assertNodeOrders(bTree.root(), orders[0], orders[1]);
+            assertNodeOrders(BTree.union(bTree, new BTree(3)).root(), orders[0], orders[1]);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new BTree(1, 8));
+    }
+
+    private static void assertNodeOrders(BTreeNode node, int innerOrder, int leafOrder) {
+        Assertions.assertEquals(node.isLeaf() ? leafOrder : innerOrder, node.order());
+        if (node.isLeaf()) return;
+        for (int i = 0; i < node.getChildrenNumber(); i++)
+            assertNodeOrders(node.children()[i], innerOrder, leafOrder);
+    }
+
+    @Test
+    public void autoTuning() {
+        Random random = new Random();
+        BTree bTree = new BTree(4);
+        bTree.enableStats();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(1_000_000);
+            bTree.insert(key);
+            expected.add(key);
+        }
+        bTree.enableAutoTuning();
+        Assertions.assertTrue(bTree.isAutoTuning());
+        //writes made while the rebuild runs are replayed on it
+        for (int i = 0; i < 1_000; i++) {
+            int key = random.nextInt(1_000_000);
+            if (i % 3 == 0) {
+                bTree.delete(key);
+                expected.remove(key);
+            } else {
+                bTree.insert(key);
+                expected.add(key);
+            }
+        }
+        bTree.awaitRebuild();
+        NodeSizing sizing = NodeSizing.detect();
+        Assertions.assertEquals(sizing.innerOrder(), bTree.order());
+        Assertions.assertEquals(sizing.leafOrder(0.5), bTree.leafOrder());
+        Assertions.assertEquals(1, bTree.stats().rebuilds());
+        assertKeys(expected, bTree);
+        assertNodeOrders(bTree.root(), bTree.order(), bTree.leafOrder());
+
+        //an interval of nothing but writes asks for smaller leaves
+        for (int i = 0; i < AutoTuner.INTERVAL + 1; i++) {
+            int key = random.nextInt(1_000_000);
+            bTree.insert(key);
+            expected.add(key);
+        }
+        bTree.awaitRebuild();
+        Assertions.assertEquals(sizing.leafOrder(0), bTree.leafOrder());
+        assertKeys(expected, bTree);
+        assertNodeOrders(bTree.root(), bTree.order(), bTree.leafOrder());
+
+        //an interval of nothing but reads starts a rebuild, but only a write takes it over
+        for (int i = 0; i < AutoTuner.INTERVAL + 1; i++) bTree.contains(random.nextInt(1_000_000));
+        Assertions.assertTrue(bTree.isRebuilding());
+        while (!bTree.isRebuilt()) Thread.onSpinWait();
+        for (int i = 0; i < 2 * AutoTuner.INTERVAL; i++) bTree.contains(random.nextInt(1_000_000));
+        Assertions.assertTrue(bTree.isRebuilt());
+        Assertions.assertEquals(sizing.leafOrder(0), bTree.leafOrder());
+        bTree.insert(-1);
+        expected.add(-1);
+        Assertions.assertFalse(bTree.isRebuilding());
+        Assertions.assertTrue(bTree.leafOrder() > sizing.leafOrder(0));
+        assertKeys(expected, bTree);
+        assertNodeOrders(bTree.root(), bTree.order(), bTree.leafOrder());
+
+        bTree.disableAutoTuning();
+        Assertions.assertFalse(bTree.isAutoTuning());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> bTree.snapshot().enableAutoTuning());
+        Assertions.assertEquals(4096, NodeSizing.parseBytes("4K"));
+        Assertions.assertEquals(2 << 20, NodeSizing.parseBytes("2M"));
+    }
+
+    @Test
+    public void nodePool() {
+        Random random = new Random();
+        BTree bTree = new BTree(3, 5);
+        bTree.enableStats();
+        bTree.enableNodePool(64);
+        bTree.enableAggregate(Aggregate.sum());
+        bTree.enableCounting();
+        TreeSet<Integer> expected = new TreeSet<>();
+        List<BTree> snapshots = new ArrayList<>();
+        List<TreeSet<Integer>> snapshotKeys = new ArrayList<>();
+        for (int round = 0; round < 40; round++) {
+            for (int i = 0; i < 2_000; i++) {
+                int key = random.nextInt(4_000);
+                if (random.nextInt(3) > 0 == (round % 2 == 0)) {
+                    bTree.insert(key);
+                    expected.add(key);
+                } else {
+                    bTree.delete(key);
+                    expected.remove(key);
+                }
+            }
+            int[] batch = random.ints(500, 0, 4_000).toArray();
+            if (round % 4 == 1) {
+                bTree.deleteBatch(batch);
+                for (int key : batch) expected.remove(key);
+            } else if (round % 4 == 3) {
+                bTree.insertBatch(batch);
+                for (int key : batch) expected.add(key);
+            }
+            if (round % 5 == 0) {
+                snapshots.add(bTree.snapshot());
+                snapshotKeys.add(new TreeSet<>(expected));
+            }
+            Assertions.assertTrue(bTree.isBalanced());
+            assertLiveKeys(expected, bTree, random);
+            Assertions.assertTrue(bTree.pooledNodes() <= 128);
+        }
+        for (int i = 0; i < snapshots.size(); i++)
+            assertLiveKeys(snapshotKeys.get(i), snapshots.get(i), random);
+        Assertions.assertTrue(bTree.stats().releasedNodes() > 0);
+        Assertions.assertTrue(bTree.stats().reusedNodes() > 0);
+
+        bTree.disableNodePool();
+        Assertions.assertEquals(0, bTree.pooledNodes());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> bTree.enableNodePool(0));
+    }
+
+    @Test
+    public void validate() {
+        int[] keys = new int[2_000_000];
+        for (int i = 0; i < keys.length; i++) keys[i] = 3 * i;
+        BTree bTree = BTree.bulkLoad(4, keys, 0.1);
+        bTree.enableCounting();
+        bTree.enableAggregate(Aggregate.max());
+        Assertions.assertNull(bTree.validate());
+
+        //the first node of every level is checked too
+        int[] leftmost = new int[bTree.height() - 1];
+        BTreeNode leaf = nodeAt(bTree, leftmost);
+        leaf.setKeyAt(1, leaf.keys()[0]);
+        assertViolation(bTree, leftmost, "out of order");
+        leaf.setKeyAt(1, 3);
+
+        int[] inner = {1, 2};
+        BTreeNode node = nodeAt(bTree, inner);
+        int key = node.keys()[0];
+        node.setKeyAt(0, node.keys()[node.getKeysNumber() - 1] + 1);
+        Assertions.assertEquals(inner.length, bTree.validate().path().length);
+        node.setKeyAt(0, key);
+        Assertions.assertNull(bTree.validate());
+
+        //a violation under any child of the root survives the other tasks stopping early
+        for (int child = 1; child < bTree.root().getChildrenNumber(); child++) {
+            int[] path = {child, 2};
+            node = nodeAt(bTree, path);
+            key = node.keys()[0];
+            node.setKeyAt(0, node.keys()[node.getKeysNumber() - 1] + 1);
+            assertViolation(bTree, path, "out of order");
+            node.setKeyAt(0, key);
+        }
+        Assertions.assertNull(bTree.validate());
+
+        int[] middle = new int[bTree.height() - 1];
+        Arrays.fill(middle, 1);
+        leaf = nodeAt(bTree, middle);
+        key = leaf.keys()[leaf.getKeysNumber() - 1];
+        leaf.deleteKeyAt(leaf.getKeysNumber() - 1);
+        assertViolation(bTree, middle, "fewer than");
+        leaf.addKeyAt(leaf.getKeysNumber(), key);
+        Assertions.assertNull(bTree.validate());
+
+        BTreeNode parent = nodeAt(bTree, Arrays.copyOf(middle, middle.length - 1));
+        parent.addToCountAt(1, 1);
+        assertViolation(bTree, Arrays.copyOf(middle, middle.length - 1), "counts");
+        parent.addToCountAt(1, -1);
+        parent.setAggregateAt(1, 0);
+        assertViolation(bTree, Arrays.copyOf(middle, middle.length - 1), "aggregate");
+        parent.setAggregateAt(1, parent.children()[1].aggregate(Aggregate.max()));
+        Assertions.assertNull(bTree.validate());
+        Assertions.assertTrue(bTree.isBalanced());
+
+        BTree small = new BTree(3);
+        Assertions.assertNull(small.validate());
+        small.insert(1, 2, 3);
+        small.root().setKeyAt(0, 5);
+        Assertions.assertArrayEquals(new int[0], small.validate().path());
+        Assertions.assertFalse(small.isBalanced());
+    }
+
+    private static BTreeNode nodeAt(BTree bTree, int[] path) {
+        BTreeNode node = bTree.root();
+        for (int index : path) node = node.children()[index];
+        return node;
+    }
+
+    private static void assertViolation(BTree bTree, int[] path, String message) {
+        TreeViolation violation = bTree.validate();
+        Assertions.assertNotNull(violation);
+        Assertions.assertArrayEquals(path, violation.path(), violation.toString());
+        Assertions.assertTrue(violation.message().contains(message), violation.toString());
+        Assertions.assertFalse(bTree.isBalanced());
+    }
+
     @Test
     public void delete(){
         Random random = new Random();
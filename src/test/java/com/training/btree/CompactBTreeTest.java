@@ -0,0 +1,40 @@
+package com.training.btree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class CompactBTreeTest {
+
+    @Test
+    public void packedLeafSearch() {
+        Random random = new Random();
+        for (int round = 0; round < 1_000; round++) {
+            int[] keys = random.ints(1 + random.nextInt(300), random.nextInt() / 2, Integer.MAX_VALUE).sorted().distinct().toArray();
+            PackedLeaf leaf = new PackedLeaf(keys, 0, keys.length);
+            for (int i = 0; i < keys.length; i++)
+                Assertions.assertEquals(keys[i], leaf.keyAt(i));
+
+            int key = keys[random.nextInt(keys.length)] + random.nextInt(3) - 1;
+            Assertions.assertEquals(SearchStrategy.LINEAR.findIndex(keys, keys.length, key), leaf.findIndex(key));
+        }
+    }
+
+    @Test
+    public void matchesTree() {
+        Random random = new Random();
+        BTree bTree = new BTree(100);
+        for (int i = 0; i < 1_000_000; i++)
+            bTree.insert(random.nextInt(2_000_000));
+
+        CompactBTree compact = CompactBTree.of(bTree);
+        Assertions.assertEquals(bTree.size(), compact.size());
+        for (int key = -10; key < 2_000_010; key++)
+            Assertions.assertEquals(bTree.contains(key), compact.contains(key));
+
+        //dense keys pack into a dozen bits or so instead of 32, without the slack of half-full nodes
+        Assertions.assertTrue(MemoryFootprint.of(bTree) > 4 * MemoryFootprint.of(compact));
+        Assertions.assertTrue(MemoryFootprint.report(bTree).contains("CompactBTree"));
+    }
+}
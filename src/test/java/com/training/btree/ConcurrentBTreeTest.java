@@ -0,0 +1,85 @@
+package com.training.btree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+public class ConcurrentBTreeTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int KEYS_PER_WRITER = 100_000;
+
+    @ParameterizedTest
+    @ValueSource(ints = {3, 16, 100})
+    public void concurrentInsertAndDelete(int order) throws Exception {
+        int keysNumber = WRITERS * KEYS_PER_WRITER;
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ConcurrentBTree(1));
+        ConcurrentBTree bTree = new ConcurrentBTree(order);
+        //multiples of three are inserted up front and never deleted, readers must always find them
+        for (int key = 0; key < keysNumber; key += 3)
+            bTree.insert(key);
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<?>> writers = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            writers.add(executor.submit(() -> {
+                //writers interleave their keys so that they keep meeting in the same leaves
+                int[] keys = IntStream.range(0, keysNumber)
+                        .filter(key -> key % WRITERS == writer && key % 3 != 0)
+                        .toArray();
+                shuffle(keys, new Random(writer));
+                for (int key : keys) bTree.insert(key);
+                shuffle(keys, new Random(writer));
+                for (int key : keys) bTree.delete(key);
+                for (int key : keys)
+                    if ((key & 8) != 0) bTree.insert(key);
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            int reader = r;
+            readers.add(executor.submit(() -> {
+                Random random = new Random(100 + reader);
+                while (writing.get()) {
+                    int key = 3 * random.nextInt(keysNumber / 3);
+                    Assertions.assertTrue(bTree.contains(key));
+                }
+            }));
+        }
+
+        for (Future<?> writer : writers) writer.get();
+        writing.set(false);
+        for (Future<?> reader : readers) reader.get();
+        executor.shutdown();
+
+        Assertions.assertTrue(bTree.isBalanced());
+        int expectedSize = 0;
+        for (int key = 0; key < keysNumber; key++) {
+            boolean expected = key % 3 == 0 || (key & 8) != 0;
+            Assertions.assertEquals(expected, bTree.contains(key));
+            if (expected) expectedSize++;
+        }
+        Assertions.assertEquals(expectedSize, bTree.size());
+    }
+
+    private static void shuffle(int[] keys, Random random) {
+        for (int i = keys.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+    }
+}
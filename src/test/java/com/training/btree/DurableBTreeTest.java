@@ -0,0 +1,82 @@
+package com.training.btree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class DurableBTreeTest {
+
+    @Test
+    public void recoverAfterCrash(@TempDir Path directory) throws IOException {
+        Random random = new Random();
+        Set<Integer> expected = new HashSet<>();
+
+        //never closed, as if the process died; only what was committed may be relied on
+        DurableBTree crashed = DurableBTree.open(directory, 4, FsyncPolicy.GROUP, 100, 30_000);
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(20_000);
+            if (random.nextInt(3) == 0) {
+                crashed.delete(key);
+                expected.remove(key);
+            } else {
+                crashed.insert(key);
+                expected.add(key);
+            }
+        }
+        crashed.commit();
+        Assertions.assertTrue(crashed.syncs() < 2_000);
+
+        //a record torn in half by the crash
+        Files.write(directory.resolve("btree.wal"), new byte[]{1, 0, 0}, StandardOpenOption.APPEND);
+
+        try (DurableBTree recovered = DurableBTree.open(directory, 4)) {
+            Assertions.assertTrue(recovered.isBalanced());
+            Assertions.assertEquals(expected.size(), recovered.size());
+            for (int key = 0; key < 20_000; key++)
+                Assertions.assertEquals(expected.contains(key), recovered.contains(key));
+
+            recovered.insert(-1);
+            expected.add(-1);
+        }
+
+        try (DurableBTree reopened = DurableBTree.open(directory, 16)) {
+            Assertions.assertTrue(reopened.isBalanced());
+            Assertions.assertEquals(expected.size(), reopened.size());
+            Assertions.assertTrue(reopened.contains(-1));
+        }
+    }
+
+    @Test
+    public void checkpointEmptiesTheLog(@TempDir Path directory) throws IOException {
+        try (DurableBTree bTree = DurableBTree.open(directory, 8, FsyncPolicy.ALWAYS, 1, 1_000)) {
+            for (int key = 0; key < 2_500; key++)
+                bTree.insert(key);
+            Assertions.assertEquals(2_500, bTree.syncs());
+            bTree.delete(0);
+        }
+
+        Assertions.assertTrue(Files.size(directory.resolve("btree.wal")) < 1_000 * 9);
+        try (DurableBTree bTree = DurableBTree.open(directory, 8)) {
+            Assertions.assertEquals(2_499, bTree.size());
+            Assertions.assertFalse(bTree.contains(0));
+            Assertions.assertTrue(bTree.contains(2_499));
+
+            List<String> steps = new ArrayList<>();
+            bTree.onCheckpointStep(steps::add);
+            bTree.checkpoint();
+            Assertions.assertEquals(0, Files.size(directory.resolve("btree.wal")));
+            Assertions.assertEquals(Arrays.asList("move", "sync directory", "truncate"), steps);
+        }
+    }
+}
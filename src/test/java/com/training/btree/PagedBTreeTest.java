@@ -0,0 +1,121 @@
+package com.training.btree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class PagedBTreeTest {
+
+    @Test
+    public void orderFollowsPageSize(@TempDir Path directory) throws IOException {
+        try (PagedBTree bTree = PagedBTree.open(directory.resolve("default.btree"))) {
+            Assertions.assertEquals(255, bTree.order());
+        }
+        try (PagedBTree bTree = PagedBTree.open(directory.resolve("small.btree"), 64)) {
+            Assertions.assertEquals(3, bTree.order());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> PagedBTree.open(directory.resolve("tiny.btree"), 32));
+    }
+
+    @Test
+    public void insertAndDelete(@TempDir Path directory) throws IOException {
+        Random random = new Random();
+        Set<Integer> expected = new HashSet<>();
+
+        try (PagedBTree bTree = PagedBTree.open(directory.resolve("tree.btree"), 64)) {
+            for (int i = 0; i < 200_000; i++) {
+                int key = random.nextInt(50_000);
+                if (random.nextInt(3) == 0) {
+                    bTree.delete(key);
+                    expected.remove(key);
+                } else {
+                    bTree.insert(key);
+                    expected.add(key);
+                }
+            }
+
+            Assertions.assertTrue(bTree.isBalanced());
+            Assertions.assertEquals(expected.size(), bTree.size());
+            for (int key = 0; key < 50_000; key++)
+                Assertions.assertEquals(expected.contains(key), bTree.contains(key));
+
+            for (int key = 0; key < 50_000; key++)
+                bTree.delete(key);
+            Assertions.assertTrue(bTree.isEmpty());
+            Assertions.assertTrue(bTree.isBalanced());
+        }
+    }
+
+    @Test
+    public void boundedBufferPool(@TempDir Path directory) throws IOException {
+        Random random = new Random();
+        Set<Integer> expected = new HashSet<>();
+
+        for (EvictionPolicy policy : new EvictionPolicy[]{EvictionPolicy.clock(), EvictionPolicy.lru()}) {
+            Path path = directory.resolve(policy.getClass().getSimpleName());
+            try (PagedBTree bTree = PagedBTree.open(path, 128, 16, policy)) {
+                for (int i = 0; i < 100_000; i++) {
+                    int key = random.nextInt(50_000);
+                    if (random.nextInt(3) == 0) {
+                        bTree.delete(key);
+                        expected.remove(key);
+                    } else {
+                        bTree.insert(key);
+                        expected.add(key);
+                    }
+                }
+
+                BufferPool pool = bTree.bufferPool();
+                Assertions.assertEquals(16, pool.capacity());
+                Assertions.assertTrue(pool.evictions() > 0);
+                Assertions.assertTrue(pool.writeBacks() > 0);
+                Assertions.assertTrue(pool.hits() > 0 && pool.misses() > 0);
+                Assertions.assertTrue(bTree.isBalanced());
+                for (int key = 0; key < 50_000; key++)
+                    Assertions.assertEquals(expected.contains(key), bTree.contains(key));
+            }
+
+            //dirty pages still in the pool were written back on close
+            try (PagedBTree bTree = PagedBTree.open(path)) {
+                Assertions.assertEquals(expected.size(), bTree.size());
+                Assertions.assertTrue(bTree.isBalanced());
+            }
+            expected.clear();
+        }
+    }
+
+    @Test
+    public void reopenExistingFile(@TempDir Path directory) throws IOException {
+        Path path = directory.resolve("tree.btree");
+        Random random = new Random();
+        Set<Integer> expected = new HashSet<>();
+
+        try (PagedBTree bTree = PagedBTree.open(path, 256)) {
+            for (int i = 0; i < 100_000; i++) {
+                int key = random.nextInt(1_000_000);
+                bTree.insert(key);
+                expected.add(key);
+            }
+        }
+
+        //the page size is read from the file
+        try (PagedBTree bTree = PagedBTree.open(path)) {
+            Assertions.assertEquals(256, bTree.pageSize());
+            Assertions.assertEquals(expected.size(), bTree.size());
+            Assertions.assertTrue(bTree.isBalanced());
+            for (int key : expected)
+                Assertions.assertTrue(bTree.contains(key));
+
+            for (int key : expected)
+                bTree.delete(key);
+            Assertions.assertTrue(bTree.isEmpty());
+        }
+    }
+}
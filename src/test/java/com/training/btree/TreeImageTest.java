@@ -0,0 +1,128 @@
+package com.training.btree;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TreeImageTest {
+
+    @Test
+    public void streamRoundTrip() throws IOException {
+        Random random = new Random();
+        for (int order : new int[]{2, 5, 100}) {
+            BTree bTree = new BTree(order, SearchStrategy.LINEAR);
+            bTree.insert(random.ints(50_000, 0, 200_000).toArray());
+            BTree loaded = BTree.readFrom(new ByteArrayInputStream(image(bTree)));
+            assertSameTree(bTree, loaded);
+            Assertions.assertEquals(SearchStrategy.LINEAR, loaded.search());
+        }
+        Assertions.assertTrue(BTree.readFrom(new ByteArrayInputStream(image(new BTree(3)))).isEmpty());
+
+        BTree mixed = new BTree(3, 40);
+        mixed.insert(random.ints(20_000).toArray());
+        BTree loaded = BTree.readFrom(new ByteArrayInputStream(image(mixed)));
+        assertSameTree(mixed, loaded);
+        Assertions.assertEquals(40, loaded.leafOrder());
+    }
+
+    @Test
+    public void fileRoundTrip(@TempDir Path directory) throws IOException {
+        Random random = new Random();
+        BTree bTree = BTree.bulkLoad(64, random.ints(500_000).toArray(), 0.7);
+        Path path = directory.resolve("tree.image");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{7, 7, 7}));
+            bTree.writeTo(channel);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.position(3);
+            assertSameTree(bTree, BTree.readFrom(channel));
+            Assertions.assertEquals(channel.size(), channel.position());
+        }
+    }
+
+    @Test
+    public void tombstonesAndValues() throws IOException {
+        BTree bTree = new BTree(3);
+        bTree.enableLazyDeletes(0.9);
+        for (int key = 0; key < 1_000; key++) bTree.insert(key);
+        for (int key = 0; key < 1_000; key += 3) bTree.delete(key);
+        BTree loaded = BTree.readFrom(new ByteArrayInputStream(image(bTree)));
+        assertSameTree(bTree, loaded);
+        Assertions.assertEquals(bTree.tombstones(), loaded.tombstones());
+        Assertions.assertTrue(loaded.isLazyDeletes());
+        loaded.compact();
+        Assertions.assertArrayEquals(bTree.stream().toArray(), loaded.stream().toArray());
+
+        BTreeMap map = new BTreeMap(4, -1);
+        for (int key = 0; key < 10_000; key++) map.put(key, 3L * key);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.writeTo(out);
+        BTreeMap loadedMap = BTreeMap.readFrom(new ByteArrayInputStream(out.toByteArray()), -1);
+        for (int key = 0; key < 10_000; key++) Assertions.assertEquals(3L * key, loadedMap.get(key));
+        Assertions.assertEquals(-1, loadedMap.get(10_000));
+        Assertions.assertThrows(IOException.class, () -> BTree.readFrom(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void streamLeftPastImage() throws IOException {
+        BTree lazy = new BTree(3);
+        lazy.enableLazyDeletes(0.9);
+        for (int key = 0; key < 5_000; key++) lazy.insert(key);
+        for (int key = 0; key < 5_000; key += 3) lazy.delete(key);
+        BTree large = BTree.bulkLoad(64, new Random().ints(300_000).toArray(), 0.7);
+        BTreeMap map = new BTreeMap(4, -1);
+        for (int key = 0; key < 10_000; key++) map.put(key, 3L * key);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        lazy.writeTo(out);
+        new BTree(3).writeTo(out);
+        large.writeTo(out);
+        map.writeTo(out);
+        out.write(new byte[]{7, 8, 9});
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertSameTree(lazy, BTree.readFrom(in));
+        Assertions.assertTrue(BTree.readFrom(in).isEmpty());
+        assertSameTree(large, BTree.readFrom(in));
+        Assertions.assertEquals(3L * 9_999, BTreeMap.readFrom(in, -1).get(9_999));
+        Assertions.assertArrayEquals(new byte[]{7, 8, 9}, in.readAllBytes());
+    }
+
+    @Test
+    public void corruptImage() throws IOException {
+        BTree bTree = new BTree(4);
+        bTree.insert(new Random().ints(10_000).toArray());
+        byte[] image = image(bTree);
+
+        byte[] flipped = image.clone();
+        flipped[image.length / 2] ^= 1;
+        Assertions.assertThrows(IOException.class, () -> BTree.readFrom(new ByteArrayInputStream(flipped)));
+        byte[] truncated = Arrays.copyOf(image, image.length - 5);
+        Assertions.assertThrows(IOException.class, () -> BTree.readFrom(new ByteArrayInputStream(truncated)));
+        Assertions.assertThrows(IOException.class, () -> BTree.readFrom(new ByteArrayInputStream(new byte[64])));
+    }
+
+    private static byte[] image(BTree bTree) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bTree.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void assertSameTree(BTree expected, BTree actual) {
+        Assertions.assertTrue(actual.isBalanced());
+        Assertions.assertEquals(expected.size(), actual.size());
+        Assertions.assertEquals(expected.height(), actual.height());
+        Assertions.assertEquals(expected.nodeCount(), actual.nodeCount());
+        Assertions.assertArrayEquals(expected.stream().toArray(), actual.stream().toArray());
+    }
+}